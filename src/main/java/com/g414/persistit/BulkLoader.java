@@ -0,0 +1,276 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.Iterator;
+
+import com.g414.persistit.Functional.ChunkSpec;
+import com.g414.persistit.Functional.KeyCodec;
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.ProgressListener;
+import com.g414.persistit.Functional.ValueCodec;
+import com.persistit.Exchange;
+import com.persistit.Key;
+import com.persistit.Transaction;
+import com.persistit.Transaction.CommitPolicy;
+import com.persistit.Value;
+import com.persistit.exception.PersistitException;
+import com.persistit.policy.SplitPolicy;
+
+/**
+ * Loads key-ordered rows into a tree: each row is a plain store() with no
+ * existence check, appended next to the previous row, and pages are packed
+ * full (SplitPolicy.PACK_BIAS) since nothing will be inserted between them
+ * later. Rows are committed in chunks bounded by the ChunkSpec, or stored
+ * without transactions at all when transactional is false (faster, but a
+ * crash leaves a partial load).
+ * 
+ * A row whose encoded key is not greater than the previous row's is
+ * out of order: it is passed to the RejectHandler, or, without one, add()
+ * throws IllegalArgumentException. Loading into a tree that already has
+ * rows works, but is only fast past its last key. Keys and values are
+ * encoded with the given codecs (null for Persistit's defaults), which must
+ * be those of the Templates and TraversalSpecs that read the tree.
+ * 
+ * The loader is used by a single thread; call finish() to commit the last
+ * chunk, or abort() to roll it back.
+ */
+public class BulkLoader<K, V> {
+	/** Receives rows that arrived out of key order */
+	public interface RejectHandler<K, V> {
+		public void rejected(K key, V value);
+	}
+
+	private final Exchange exchange;
+	private final ChunkSpec chunkSpec;
+	private final KeyCodec<K> keyCodec;
+	private final ValueCodec<V> codec;
+	private final boolean transactional;
+	private final RejectHandler<K, V> rejectHandler;
+	private final ProgressListener listener;
+	private final long start = System.nanoTime();
+	private final byte[] lastKey;
+	private int lastKeyLength = -1;
+	private boolean inChunk;
+	private boolean finished;
+	private int chunkRows;
+	private long chunkBytes;
+	private long rows;
+	private long rowsLoaded;
+	private long bytes;
+
+	public BulkLoader(Exchange exchange, ChunkSpec chunkSpec) {
+		this(exchange, chunkSpec, null, null);
+	}
+
+	public BulkLoader(Exchange exchange, ChunkSpec chunkSpec,
+			KeyCodec<K> keyCodec, ValueCodec<V> codec) {
+		this(exchange, chunkSpec, true, keyCodec, codec, null, null);
+	}
+
+	public BulkLoader(Exchange exchange, ChunkSpec chunkSpec,
+			boolean transactional, RejectHandler<K, V> rejectHandler,
+			ProgressListener listener) {
+		this(exchange, chunkSpec, transactional, null, null, rejectHandler,
+				listener);
+	}
+
+	public BulkLoader(Exchange exchange, ChunkSpec chunkSpec,
+			boolean transactional, KeyCodec<K> keyCodec, ValueCodec<V> codec,
+			RejectHandler<K, V> rejectHandler, ProgressListener listener) {
+		if (transactional && exchange.getTransaction().isActive()) {
+			throw new IllegalStateException(
+					"a transactional bulk load must manage its own transactions");
+		}
+
+		this.exchange = exchange;
+		this.chunkSpec = chunkSpec;
+		this.keyCodec = keyCodec;
+		this.codec = codec;
+		this.transactional = transactional;
+		this.rejectHandler = rejectHandler;
+		this.listener = listener;
+		this.lastKey = new byte[exchange.getKey().getMaximumSize()];
+
+		exchange.setSplitPolicy(SplitPolicy.PACK_BIAS);
+	}
+
+	/**
+	 * Stores the row if its key follows the previous row's; returns false if
+	 * the row was rejected (and passed to the RejectHandler).
+	 */
+	public boolean add(K key, V value) {
+		if (finished) {
+			throw new IllegalStateException("bulk load already finished");
+		}
+
+		rows += 1;
+
+		Key encodedKey = exchange.getKey();
+		exchange.clear();
+		Functional.encodeKey(encodedKey, key, keyCodec);
+
+		int keyLength = encodedKey.getEncodedSize();
+		if (lastKeyLength >= 0
+				&& Functional.compareKeyBytes(encodedKey.getEncodedBytes(),
+						keyLength, lastKey, lastKeyLength) <= 0) {
+			if (rejectHandler == null) {
+				throw new IllegalArgumentException("key " + key
+						+ " is out of order");
+			}
+
+			rejectHandler.rejected(key, value);
+
+			return false;
+		}
+
+		try {
+			if (transactional && !inChunk) {
+				exchange.getTransaction().begin();
+			}
+			inChunk = true;
+
+			Value encodedValue = exchange.getValue();
+			Functional.encodeValue(encodedValue, value, codec);
+			exchange.store();
+
+			System.arraycopy(encodedKey.getEncodedBytes(), 0, lastKey, 0,
+					keyLength);
+			lastKeyLength = keyLength;
+
+			chunkRows += 1;
+			chunkBytes += keyLength + encodedValue.getEncodedSize();
+		} catch (PersistitException e) {
+			abort();
+			throw new RuntimeException(e);
+		} catch (RuntimeException e) {
+			abort();
+			throw e;
+		}
+
+		if (chunkSpec.isFull(chunkRows, chunkBytes)) {
+			endChunk(false);
+		}
+
+		return true;
+	}
+
+	/** Adds every row from the iterator, then finishes the load */
+	public long load(Iterator<? extends Pair<K, V>> input) {
+		while (input.hasNext()) {
+			Pair<K, V> row = input.next();
+			add(row.getKey(), row.getValue());
+		}
+
+		return finish();
+	}
+
+	/**
+	 * Commits the last chunk and restores the default split policy; returns
+	 * the number of rows loaded.
+	 */
+	public long finish() {
+		if (!finished) {
+			endChunk(true);
+			finished = true;
+			restoreSplitPolicy();
+		}
+
+		return rowsLoaded;
+	}
+
+	/**
+	 * Rolls back the open chunk (in a transactional load) and ends the load;
+	 * rows from chunks that were already committed stay in the tree.
+	 */
+	public void abort() {
+		if (finished) {
+			return;
+		}
+
+		finished = true;
+		restoreSplitPolicy();
+
+		if (transactional && inChunk) {
+			Transaction txn = exchange.getTransaction();
+			try {
+				txn.rollback();
+			} finally {
+				txn.end();
+			}
+		}
+
+		inChunk = false;
+	}
+
+	/** Rows offered to add(), including rejected ones */
+	public long getRows() {
+		return rows;
+	}
+
+	/** Rows stored (and, in a transactional load, committed) so far */
+	public long getRowsLoaded() {
+		return rowsLoaded;
+	}
+
+	public long getRowsRejected() {
+		return rows - rowsLoaded - chunkRows;
+	}
+
+	private void endChunk(boolean last) {
+		if (!inChunk) {
+			return;
+		}
+
+		inChunk = false;
+
+		if (transactional) {
+			Transaction txn = exchange.getTransaction();
+			try {
+				// only the last chunk needs to be durable: a crash loses the
+				// whole load either way, since the input must be replayed
+				if (last) {
+					txn.commit();
+				} else {
+					txn.commit(CommitPolicy.SOFT);
+				}
+			} catch (PersistitException e) {
+				finished = true;
+				restoreSplitPolicy();
+				throw new RuntimeException(e);
+			} finally {
+				txn.end();
+			}
+		}
+
+		rowsLoaded += chunkRows;
+		bytes += chunkBytes;
+		chunkRows = 0;
+		chunkBytes = 0;
+
+		if (listener != null) {
+			listener.progress(rows, rowsLoaded, bytes, System.nanoTime()
+					- start);
+		}
+	}
+
+	private void restoreSplitPolicy() {
+		exchange.setSplitPolicy(exchange.getPersistitInstance()
+				.getDefaultSplitPolicy());
+	}
+}
@@ -0,0 +1,357 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.g414.persistit.Functional.KeyCodec;
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.PairImpl;
+import com.g414.persistit.Functional.ValueCodec;
+import com.persistit.Exchange;
+import com.persistit.Persistit;
+import com.persistit.Transaction;
+
+/**
+ * A Template that keeps decoded values of recently loaded keys in a bounded
+ * LRU cache, so hot keys skip the fetch and deserialization on load. Writes
+ * through this template invalidate the written keys before and after the
+ * write. Keys written inside a transaction bypass the cache (for every
+ * thread) until the transaction ends, and are invalidated again then: at
+ * once for transactions begun through inTransaction(), otherwise on the
+ * writing thread's next call to this template after its transaction ends.
+ * Writes made by other templates or directly through an Exchange are not
+ * seen by the cache. Loads inside an active transaction read its snapshot
+ * from the tree and neither use nor fill the cache. Cached values are shared
+ * between callers and must not be modified.
+ */
+public class CachingTemplate<K, V> extends Template<K, V> {
+	private final int maxEntries;
+	private final LinkedHashMap<K, V> cache;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	/** Keys with uncommitted writes, by writer count; guarded by cache */
+	private final Map<K, Integer> inFlight = new HashMap<K, Integer>();
+	private final ThreadLocal<PendingWrites> pendingWrites = new ThreadLocal<PendingWrites>() {
+		@Override
+		protected PendingWrites initialValue() {
+			return new PendingWrites();
+		}
+	};
+
+	/** The keys this thread has written in its current transaction */
+	private class PendingWrites {
+		private long startTimestamp;
+		private final Set<K> keys = new HashSet<K>();
+	}
+
+	public CachingTemplate(int maxEntries) {
+		this(maxEntries, null);
+	}
+
+	/** Creates a cache over a template that stores values with the codec */
+	public CachingTemplate(int maxEntries, ValueCodec<V> codec) {
+		this(maxEntries, null, codec);
+	}
+
+	/** Creates a cache over a template that also encodes keys with keyCodec */
+	public CachingTemplate(int maxEntries, KeyCodec<K> keyCodec,
+			ValueCodec<V> codec) {
+		super(keyCodec, codec);
+
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+
+		this.maxEntries = maxEntries;
+		this.cache = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				if (size() > CachingTemplate.this.maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+
+				return false;
+			}
+		};
+	}
+
+	@Override
+	public <T> T inTransaction(Persistit database, RetryPolicy policy,
+			TransactionCallback<T> callback) throws Exception {
+		boolean isOutermost = !database.getTransaction().isActive();
+
+		try {
+			return super.inTransaction(database, policy, callback);
+		} finally {
+			if (isOutermost) {
+				flush(pendingWrites.get());
+			}
+		}
+	}
+
+	@Override
+	public Pair<K, V> load(Exchange exchange, K key) {
+		flushEnded(exchange.getTransaction());
+		if (exchange.getTransaction().isActive()) {
+			return super.load(exchange, key);
+		}
+
+		V cached = lookup(key);
+		if (cached != null) {
+			return new PairImpl<K, V>(key, cached);
+		}
+
+		long version = invalidations.get();
+		Pair<K, V> loaded = super.load(exchange, key);
+		if (loaded != null) {
+			populate(key, loaded.getValue(), version);
+		}
+
+		return loaded;
+	}
+
+	@Override
+	public List<Pair<K, V>> loadAll(Exchange exchange, Collection<K> keys) {
+		flushEnded(exchange.getTransaction());
+		if (exchange.getTransaction().isActive()) {
+			return super.loadAll(exchange, keys);
+		}
+
+		List<Pair<K, V>> results = new ArrayList<Pair<K, V>>(keys.size());
+		List<Integer> missIndexes = new ArrayList<Integer>();
+		List<K> missKeys = new ArrayList<K>();
+
+		for (K key : keys) {
+			V cached = lookup(key);
+			if (cached != null) {
+				results.add(new PairImpl<K, V>(key, cached));
+			} else {
+				missIndexes.add(results.size());
+				missKeys.add(key);
+				results.add(null);
+			}
+		}
+
+		if (!missKeys.isEmpty()) {
+			long version = invalidations.get();
+			List<Pair<K, V>> loaded = super.loadAll(exchange, missKeys);
+
+			for (int i = 0; i < loaded.size(); i++) {
+				Pair<K, V> row = loaded.get(i);
+				if (row != null) {
+					results.set(missIndexes.get(i), row);
+					populate(row.getKey(), row.getValue(), version);
+				}
+			}
+		}
+
+		return results;
+	}
+
+	@Override
+	public void storeAll(Exchange exchange, Map<K, V> records) {
+		for (K key : records.keySet()) {
+			written(exchange, key);
+		}
+
+		try {
+			super.storeAll(exchange, records);
+		} finally {
+			for (K key : records.keySet()) {
+				invalidate(key);
+			}
+		}
+	}
+
+	@Override
+	public boolean insert(Exchange exchange, K key, V value) {
+		written(exchange, key);
+
+		try {
+			return super.insert(exchange, key, value);
+		} finally {
+			invalidate(key);
+		}
+	}
+
+	@Override
+	public boolean update(Exchange exchange, K key, V value) {
+		written(exchange, key);
+
+		try {
+			return super.update(exchange, key, value);
+		} finally {
+			invalidate(key);
+		}
+	}
+
+	@Override
+	public boolean insertOrUpdate(Exchange exchange, K key, V value) {
+		written(exchange, key);
+
+		try {
+			return super.insertOrUpdate(exchange, key, value);
+		} finally {
+			invalidate(key);
+		}
+	}
+
+	@Override
+	public boolean delete(Exchange exchange, K key) {
+		written(exchange, key);
+
+		try {
+			return super.delete(exchange, key);
+		} finally {
+			invalidate(key);
+		}
+	}
+
+	/** Drops the given key from the cache */
+	public void invalidate(K key) {
+		invalidations.incrementAndGet();
+
+		synchronized (cache) {
+			cache.remove(key);
+		}
+	}
+
+	/** Drops every key from the cache */
+	public void invalidateAll() {
+		invalidations.incrementAndGet();
+
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	public int getSize() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	private V lookup(K key) {
+		V cached = null;
+		synchronized (cache) {
+			if (!inFlight.containsKey(key)) {
+				cached = cache.get(key);
+			}
+		}
+
+		if (cached != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+
+		return cached;
+	}
+
+	/**
+	 * Caches a freshly loaded value, unless some transaction has an
+	 * uncommitted write to the key or any key was invalidated since the load
+	 * began (the loaded value may already be stale).
+	 */
+	private void populate(K key, V value, long version) {
+		synchronized (cache) {
+			if (invalidations.get() == version && !inFlight.containsKey(key)) {
+				cache.put(key, value);
+			}
+		}
+	}
+
+	private void written(Exchange exchange, K key) {
+		invalidate(key);
+
+		Transaction txn = exchange.getTransaction();
+		flushEnded(txn);
+		if (!txn.isActive()) {
+			return;
+		}
+
+		PendingWrites pending = pendingWrites.get();
+		pending.startTimestamp = txn.getStartTimestamp();
+		if (pending.keys.add(key)) {
+			synchronized (cache) {
+				Integer writers = inFlight.get(key);
+				inFlight.put(key, (writers == null) ? 1 : writers + 1);
+			}
+		}
+	}
+
+	/**
+	 * Flushes this thread's pending keys if the transaction they were written
+	 * in has since committed or rolled back, which Persistit gives no
+	 * callback for.
+	 */
+	private void flushEnded(Transaction txn) {
+		PendingWrites pending = pendingWrites.get();
+		if (!pending.keys.isEmpty()
+				&& (!txn.isActive() || pending.startTimestamp != txn
+						.getStartTimestamp())) {
+			flush(pending);
+		}
+	}
+
+	/** Makes the pending keys cacheable again, invalidating each */
+	private void flush(PendingWrites pending) {
+		for (K key : pending.keys) {
+			synchronized (cache) {
+				int writers = inFlight.get(key);
+				if (writers == 1) {
+					inFlight.remove(key);
+				} else {
+					inFlight.put(key, writers - 1);
+				}
+			}
+
+			invalidate(key);
+		}
+
+		pending.keys.clear();
+	}
+}
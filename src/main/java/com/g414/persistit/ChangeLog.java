@@ -0,0 +1,454 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import com.g414.persistit.Functional.KeyCodec;
+import com.g414.persistit.Functional.Mapping;
+import com.g414.persistit.Functional.MutationType;
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.Traversal;
+import com.g414.persistit.Functional.TraversalSpec;
+import com.g414.persistit.Functional.ValueCodec;
+import com.g414.persistit.Template.MutationListener;
+import com.persistit.Accumulator;
+import com.persistit.Exchange;
+import com.persistit.Key;
+import com.persistit.Persistit;
+import com.persistit.Transaction;
+import com.persistit.Tree;
+import com.persistit.Value;
+import com.persistit.exception.PersistitException;
+
+/**
+ * A change log for the writes made through a Template (including
+ * Functional.apply mutations): each write appends a (key, mutation type, new
+ * value) record to the log tree, in the write's transaction, keyed by a
+ * sequence number from the tree's SEQ accumulator. Consumers read what
+ * changed since their last checkpoint with tail(), record how far they got
+ * with setWatermark(), and truncate() removes the records every consumer
+ * has seen.
+ * 
+ * Sequence numbers are allocated in write order, but concurrent transactions
+ * may commit out of order. getSafeSequence() is the point below which every
+ * transaction that took a sequence number has ended: tail() stops there and
+ * truncate() never goes past it, so a record can not commit behind a
+ * consumer's watermark. Transactions are tracked per log tree across all of
+ * the ChangeLogs in this JVM.
+ * 
+ * Records hold the key and value exactly as the template encodes them, so
+ * the log must use the same codecs (attach() takes them from the template).
+ */
+public class ChangeLog<K, V> implements MutationListener<K, V> {
+	/** One logged write; the value is null for deletes */
+	public static class Change<K, V> {
+		private final long sequence;
+		private final MutationType type;
+		private final K key;
+		private final V value;
+
+		public Change(long sequence, MutationType type, K key, V value) {
+			this.sequence = sequence;
+			this.type = type;
+			this.key = key;
+			this.value = value;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		public MutationType getType() {
+			return type;
+		}
+
+		public K getKey() {
+			return key;
+		}
+
+		public V getValue() {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return sequence + " " + type + " " + key + "=" + value;
+		}
+	}
+
+	/** A sequence number taken by a transaction that may not have ended */
+	private static class Allocation {
+		private final Transaction txn;
+		private final long startTimestamp;
+
+		public Allocation(Transaction txn) {
+			this.txn = txn;
+			this.startTimestamp = txn.getStartTimestamp();
+		}
+
+		public boolean isEnded() {
+			return !txn.isActive() || txn.getStartTimestamp() != startTimestamp;
+		}
+	}
+
+	private static final MutationType[] TYPES = MutationType.values();
+
+	/** Outstanding allocations by sequence number, per log tree */
+	private static final Map<Tree, SortedMap<Long, Allocation>> ALLOCATIONS = new WeakHashMap<Tree, SortedMap<Long, Allocation>>();
+
+	private final Persistit db;
+	private final String volume;
+	private final String tree;
+	private final String watermarkTree;
+	private final KeyCodec<K> keyCodec;
+	private final ValueCodec<V> codec;
+
+	public ChangeLog(Persistit db, String volume, String tree) {
+		this(db, volume, tree, null, null);
+	}
+
+	/**
+	 * Creates a log in the given tree; consumer watermarks are kept in the
+	 * tree of the same name with a ".watermarks" suffix.
+	 */
+	public ChangeLog(Persistit db, String volume, String tree,
+			KeyCodec<K> keyCodec, ValueCodec<V> codec) {
+		this.db = db;
+		this.volume = volume;
+		this.tree = tree;
+		this.watermarkTree = tree + ".watermarks";
+		this.keyCodec = keyCodec;
+		this.codec = codec;
+	}
+
+	/**
+	 * Creates a log (with the template's codecs) and registers it for the
+	 * template's writes.
+	 */
+	public static <K, V> ChangeLog<K, V> attach(Template<K, V> template,
+			Persistit db, String volume, String tree) {
+		ChangeLog<K, V> log = new ChangeLog<K, V>(db, volume, tree,
+				template.getKeyCodec(), template.getCodec());
+		template.addMutationListener(log);
+
+		return log;
+	}
+
+	/**
+	 * Appends a record for the write; the record layout is the mutation type
+	 * (one byte), the encoded key length (four bytes), the encoded key and
+	 * then the encoded value (empty for a delete).
+	 */
+	@Override
+	public void mutated(Exchange exchange, MutationType type, K key, V value) {
+		try {
+			Exchange log = db.getExchange(volume, tree, true);
+			try {
+				Key encodedKey = log.getKey();
+				encodedKey.clear();
+				Functional.encodeKey(encodedKey, key, keyCodec);
+				int keyLength = encodedKey.getEncodedSize();
+
+				Value encodedValue = log.getValue();
+				encodedValue.clear();
+				if (type.equals(MutationType.INSERT_OR_UPDATE)) {
+					Functional.encodeValue(encodedValue, value, codec);
+				}
+				int valueLength = encodedValue.getEncodedSize();
+
+				byte[] record = new byte[5 + keyLength + valueLength];
+				record[0] = (byte) type.ordinal();
+				record[1] = (byte) (keyLength >>> 24);
+				record[2] = (byte) (keyLength >>> 16);
+				record[3] = (byte) (keyLength >>> 8);
+				record[4] = (byte) keyLength;
+				System.arraycopy(encodedKey.getEncodedBytes(), 0, record, 5,
+						keyLength);
+				System.arraycopy(encodedValue.getEncodedBytes(), 0, record,
+						5 + keyLength, valueLength);
+
+				Transaction txn = log.getTransaction();
+				Accumulator accumulator = log.getTree().getAccumulator(
+						Accumulator.Type.SEQ, 0);
+				SortedMap<Long, Allocation> allocations = allocations(log
+						.getTree());
+				long sequence;
+				synchronized (allocations) {
+					pruneEnded(allocations);
+					sequence = accumulator.update(1, txn);
+					allocations.put(sequence, new Allocation(txn));
+				}
+
+				log.clear().append(sequence);
+				log.getValue().putByteArray(record);
+				log.store();
+			} finally {
+				db.releaseExchange(log);
+			}
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the highest sequence number at or below which every record's
+	 * transaction has committed or rolled back, so no record at or below it
+	 * can still appear.
+	 */
+	public long getSafeSequence() {
+		try {
+			Exchange log = db.getExchange(volume, tree, true);
+			try {
+				Accumulator accumulator = log.getTree().getAccumulator(
+						Accumulator.Type.SEQ, 0);
+				SortedMap<Long, Allocation> allocations = allocations(log
+						.getTree());
+
+				synchronized (allocations) {
+					Long open = pruneEnded(allocations);
+
+					return (open == null) ? accumulator.getLiveValue()
+							: open - 1;
+				}
+			} finally {
+				db.releaseExchange(log);
+			}
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns a traversal of the records from the given sequence number up to
+	 * the safe sequence number (as of this call), in sequence order, over an
+	 * Exchange on the log tree.
+	 */
+	public Traversal<Long, byte[], Change<K, V>> tail(Exchange logExchange,
+			long fromSequence) {
+		final Key key = new Key(db);
+		final Value value = new Value(db);
+
+		return Functional.map(logExchange,
+				new TraversalSpec<Long, byte[]>().withStart(fromSequence, true)
+						.withEnd(getSafeSequence(), true),
+				new Mapping<Long, byte[], Change<K, V>>() {
+					@Override
+					public Change<K, V> map(Pair<Long, byte[]> row) {
+						byte[] record = row.getValue();
+						MutationType type = TYPES[record[0]];
+						int keyLength = ((record[1] & 0xFF) << 24)
+								| ((record[2] & 0xFF) << 16)
+								| ((record[3] & 0xFF) << 8)
+								| (record[4] & 0xFF);
+
+						System.arraycopy(record, 5, key.getEncodedBytes(), 0,
+								keyLength);
+						key.setEncodedSize(keyLength);
+
+						V decoded = null;
+						if (type.equals(MutationType.INSERT_OR_UPDATE)) {
+							value.putEncodedBytes(record, 5 + keyLength,
+									record.length - 5 - keyLength);
+							decoded = Functional.decodeValue(value, codec);
+						}
+
+						return new Change<K, V>(row.getKey(), type, Functional
+								.decodeKey(key.reset(), keyCodec), decoded);
+					}
+				});
+	}
+
+	/** Records that the consumer has processed every record up to sequence */
+	public void setWatermark(String consumer, long sequence) {
+		try {
+			Exchange watermarks = db.getExchange(volume, watermarkTree, true);
+			try {
+				watermarks.clear().append(consumer);
+				watermarks.getValue().put(sequence);
+				watermarks.store();
+			} finally {
+				db.releaseExchange(watermarks);
+			}
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Returns the consumer's watermark, or -1 if it has none */
+	public long getWatermark(String consumer) {
+		try {
+			Exchange watermarks = db.getExchange(volume, watermarkTree, true);
+			try {
+				watermarks.clear().append(consumer).fetch();
+
+				return watermarks.getValue().isDefined() ? watermarks
+						.getValue().getLong() : -1L;
+			} finally {
+				db.releaseExchange(watermarks);
+			}
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Forgets a consumer, so it no longer holds back truncation */
+	public void removeConsumer(String consumer) {
+		try {
+			Exchange watermarks = db.getExchange(volume, watermarkTree, true);
+			try {
+				watermarks.clear().append(consumer).remove();
+			} finally {
+				db.releaseExchange(watermarks);
+			}
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Removes the records at or below the lowest consumer watermark (but not
+	 * past the safe sequence number), with one removeKeyRange of up to
+	 * batchSize sequence numbers per transaction so that truncating a long
+	 * log does not make one huge transaction. Returns the sequence number
+	 * truncated up to (-1 if there are no consumers, in which case nothing is
+	 * removed).
+	 */
+	public long truncate(long batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive");
+		}
+
+		try {
+			long low = lowestWatermark();
+			if (low < 0) {
+				return -1L;
+			}
+			low = Math.min(low, getSafeSequence());
+
+			Exchange log = db.getExchange(volume, tree, true);
+			try {
+				Key start = new Key(db);
+				Key end = new Key(db);
+				Transaction txn = log.getTransaction();
+
+				log.clear().append(Key.BEFORE);
+				while (log.next()) {
+					long first = log.getKey().reset().decodeLong();
+					if (first > low) {
+						break;
+					}
+
+					long last = Math.min(low, first + batchSize - 1);
+					start.clear().append(first);
+					end.clear().append(last + 1);
+
+					txn.begin();
+					try {
+						log.removeKeyRange(start, end);
+						txn.commit();
+					} finally {
+						txn.end();
+					}
+
+					log.clear().append(last);
+				}
+			} finally {
+				db.releaseExchange(log);
+			}
+
+			return low;
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Returns the number of allocations not yet pruned, for tests */
+	int getAllocationCount() {
+		try {
+			Exchange log = db.getExchange(volume, tree, true);
+			try {
+				SortedMap<Long, Allocation> allocations = allocations(log
+						.getTree());
+				synchronized (allocations) {
+					return allocations.size();
+				}
+			} finally {
+				db.releaseExchange(log);
+			}
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Drops the allocations, lowest first, whose transactions have ended,
+	 * returning the lowest sequence number still open (null if none); called
+	 * on every write so a log nobody polls stays small. Guarded by
+	 * allocations.
+	 */
+	private static Long pruneEnded(SortedMap<Long, Allocation> allocations) {
+		Iterator<Map.Entry<Long, Allocation>> iter = allocations.entrySet()
+				.iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Long, Allocation> allocation = iter.next();
+			if (!allocation.getValue().isEnded()) {
+				return allocation.getKey();
+			}
+
+			iter.remove();
+		}
+
+		return null;
+	}
+
+	private static SortedMap<Long, Allocation> allocations(Tree logTree) {
+		synchronized (ALLOCATIONS) {
+			SortedMap<Long, Allocation> allocations = ALLOCATIONS.get(logTree);
+			if (allocations == null) {
+				allocations = new TreeMap<Long, Allocation>();
+				ALLOCATIONS.put(logTree, allocations);
+			}
+
+			return allocations;
+		}
+	}
+
+	private long lowestWatermark() throws PersistitException {
+		Exchange watermarks = db.getExchange(volume, watermarkTree, true);
+		try {
+			long low = -1L;
+
+			watermarks.clear().append(Key.BEFORE);
+			while (watermarks.next()) {
+				long sequence = watermarks.getValue().getLong();
+				if (low < 0 || sequence < low) {
+					low = sequence;
+				}
+			}
+
+			return low;
+		} finally {
+			db.releaseExchange(watermarks);
+		}
+	}
+}
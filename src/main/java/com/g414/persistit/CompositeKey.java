@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.g414.persistit.Functional.KeyCodec;
+import com.persistit.Key;
+
+/**
+ * An immutable key of several typed components (Long, Integer, String,
+ * byte[] and anything else Persistit can append to a Key), stored one
+ * component per Key segment with CODEC. Keys sort segment by segment, so a
+ * shorter CompositeKey is a prefix of all the keys that start with its
+ * components, and TraversalSpec.withPrefix seeks straight to them. Traversals
+ * over CompositeKey trees need a deep spec (TraversalSpec.withDeep), which
+ * withPrefix turns on by itself.
+ */
+public final class CompositeKey {
+	/** Appends each component as its own segment; decodes all segments */
+	public static final KeyCodec<CompositeKey> CODEC = new KeyCodec<CompositeKey>() {
+		@Override
+		public void append(Key target, CompositeKey key) {
+			for (Object component : key.components) {
+				target.append(component);
+			}
+		}
+
+		@Override
+		public CompositeKey decode(Key source) {
+			List<Object> components = new ArrayList<Object>();
+			while (source.getIndex() < source.getEncodedSize()) {
+				components.add(source.decode());
+			}
+
+			return new CompositeKey(components.toArray());
+		}
+	};
+
+	private final Object[] components;
+
+	private CompositeKey(Object[] components) {
+		this.components = components;
+	}
+
+	public static CompositeKey of(Object... components) {
+		for (Object component : components) {
+			if (component == null) {
+				throw new IllegalArgumentException(
+						"components must not be null");
+			}
+		}
+
+		return new CompositeKey(components.clone());
+	}
+
+	public int size() {
+		return components.length;
+	}
+
+	public Object get(int index) {
+		return components[index];
+	}
+
+	public List<Object> getComponents() {
+		return Collections.unmodifiableList(Arrays.asList(components));
+	}
+
+	/** Returns the key made of the first length (0 to size()) components */
+	public CompositeKey prefix(int length) {
+		if (length < 0 || length > components.length) {
+			throw new IllegalArgumentException(
+					"length must be between 0 and size()");
+		}
+
+		return new CompositeKey(Arrays.copyOf(components, length));
+	}
+
+	/** Returns this key with one more component at the end */
+	public CompositeKey append(Object component) {
+		if (component == null) {
+			throw new IllegalArgumentException("components must not be null");
+		}
+
+		Object[] appended = Arrays.copyOf(components, components.length + 1);
+		appended[components.length] = component;
+
+		return new CompositeKey(appended);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof CompositeKey
+				&& Arrays.deepEquals(components,
+						((CompositeKey) other).components);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.deepHashCode(components);
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.deepToString(components);
+	}
+}
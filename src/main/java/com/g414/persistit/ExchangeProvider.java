@@ -0,0 +1,185 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.persistit.Exchange;
+import com.persistit.Persistit;
+import com.persistit.exception.PersistitException;
+
+/**
+ * Hands out Exchanges from small per-thread pools, one pool per (volume,
+ * tree), so that repeated operations on a thread reuse the same Exchange
+ * without touching Persistit's shared exchange pool. Every acquire() must be
+ * paired with a release() on the same thread; nested acquires get distinct
+ * Exchanges. Pools belonging to threads that have exited are dropped the next
+ * time a new thread registers, and close() drops every pool (call it before
+ * closing the database, e.g. from Shutdown).
+ */
+public class ExchangeProvider {
+	private final Persistit db;
+	private final boolean create;
+	private final Map<Thread, ThreadPool> pools = new HashMap<Thread, ThreadPool>();
+	private final ThreadLocal<ThreadPool> localPool = new ThreadLocal<ThreadPool>();
+	private volatile boolean closed = false;
+
+	public ExchangeProvider(Persistit db) {
+		this(db, true);
+	}
+
+	/** Creates a provider; create specifies whether missing trees are created */
+	public ExchangeProvider(Persistit db, boolean create) {
+		this.db = db;
+		this.create = create;
+	}
+
+	public Persistit getPersistit() {
+		return db;
+	}
+
+	/** Returns an idle Exchange for the tree, owned by the calling thread */
+	public Exchange acquire(String volume, String tree) {
+		if (closed) {
+			throw new IllegalStateException("ExchangeProvider is closed");
+		}
+
+		ThreadPool pool = getThreadPool();
+		List<Exchange> idle = pool.getIdle(volume, tree);
+		if (!idle.isEmpty()) {
+			return idle.remove(idle.size() - 1);
+		}
+
+		try {
+			Exchange exchange = db.getExchange(volume, tree, create);
+			pool.home.put(exchange, idle);
+
+			return exchange;
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Returns an Exchange obtained from acquire() on this thread */
+	public void release(Exchange exchange) {
+		ThreadPool pool = localPool.get();
+		List<Exchange> idle = (pool == null) ? null : pool.home.get(exchange);
+		if (idle == null) {
+			throw new IllegalArgumentException(
+					"Exchange was not acquired on this thread");
+		}
+
+		idle.add(exchange);
+	}
+
+	/**
+	 * Releases the calling thread's idle Exchanges back to Persistit; call
+	 * this when a pooled worker thread is done with the database.
+	 */
+	public void releaseThread() {
+		ThreadPool pool = localPool.get();
+		if (pool == null) {
+			return;
+		}
+
+		localPool.remove();
+		synchronized (pools) {
+			pools.remove(Thread.currentThread());
+		}
+
+		pool.releaseTo(db);
+	}
+
+	/**
+	 * Closes the provider: the calling thread's Exchanges are released to
+	 * Persistit, and the pools of other threads are dropped (Persistit's
+	 * exchange pool is per-thread, so they cannot be released from here).
+	 */
+	public void close() {
+		closed = true;
+		releaseThread();
+
+		synchronized (pools) {
+			pools.clear();
+		}
+	}
+
+	private ThreadPool getThreadPool() {
+		ThreadPool pool = localPool.get();
+		if (pool != null) {
+			return pool;
+		}
+
+		pool = new ThreadPool();
+		localPool.set(pool);
+
+		synchronized (pools) {
+			// drop the pools of threads that have exited
+			Iterator<Thread> threads = pools.keySet().iterator();
+			while (threads.hasNext()) {
+				if (!threads.next().isAlive()) {
+					threads.remove();
+				}
+			}
+
+			pools.put(Thread.currentThread(), pool);
+		}
+
+		return pool;
+	}
+
+	/** The Exchanges created by (and only used on) a single thread */
+	private static class ThreadPool {
+		private final Map<String, Map<String, List<Exchange>>> idle = new HashMap<String, Map<String, List<Exchange>>>();
+		private final Map<Exchange, List<Exchange>> home = new IdentityHashMap<Exchange, List<Exchange>>();
+
+		public List<Exchange> getIdle(String volume, String tree) {
+			Map<String, List<Exchange>> trees = idle.get(volume);
+			if (trees == null) {
+				trees = new HashMap<String, List<Exchange>>();
+				idle.put(volume, trees);
+			}
+
+			List<Exchange> exchanges = trees.get(tree);
+			if (exchanges == null) {
+				exchanges = new ArrayList<Exchange>();
+				trees.put(tree, exchanges);
+			}
+
+			return exchanges;
+		}
+
+		public void releaseTo(Persistit db) {
+			for (Map<String, List<Exchange>> trees : idle.values()) {
+				for (List<Exchange> exchanges : trees.values()) {
+					for (Exchange exchange : exchanges) {
+						db.releaseExchange(exchange);
+					}
+					exchanges.clear();
+				}
+			}
+
+			home.clear();
+		}
+	}
+}
@@ -17,11 +17,25 @@
  */
 package com.g414.persistit;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import com.persistit.Exchange;
 import com.persistit.Key;
 import com.persistit.KeyFilter;
+import com.persistit.KeyHistogram;
+import com.persistit.Persistit;
+import com.persistit.Transaction;
+import com.persistit.Value;
 import com.persistit.exception.PersistitException;
 
 /**
@@ -46,6 +60,34 @@ public class Functional {
 		public void traverseAll();
 	}
 
+	/**
+	 * A traversal that can be split for parallel processing, in the manner of
+	 * java.util.Spliterator: rows come in key order (in the traversal's
+	 * direction) and are never null.
+	 */
+	public interface SplittableTraversal<K, V> {
+		/** Passes the next row to the action; returns false when exhausted */
+		public boolean tryAdvance(Mapping<K, V, ?> action);
+
+		/** Passes every remaining row to the action */
+		public void forEachRemaining(Mapping<K, V, ?> action);
+
+		/**
+		 * Splits off the first half (in traversal order) of the remaining
+		 * rows into a new traversal with its own Exchange, which may be used
+		 * on another thread; returns null if the rest is too small to split.
+		 */
+		public SplittableTraversal<K, V> trySplit();
+	}
+
+	/**
+	 * A Traversal backed by resources (such as a thread) that must be closed
+	 * if the traversal is abandoned before it is exhausted.
+	 */
+	public interface CloseableTraversal<K, V, T> extends Traversal<K, V, T> {
+		public void close();
+	}
+
 	/** For Mutation mappings, the type of Mutation */
 	public enum MutationType {
 		NONE, INSERT_OR_UPDATE, DELETE;
@@ -88,6 +130,29 @@ public class Functional {
 		public T reduce(Pair<K, V> row, T initial);
 	}
 
+	/**
+	 * Combines two partially accumulated values produced by a Reduction over
+	 * adjacent key ranges; the left value covers the earlier rows in traversal
+	 * order.
+	 */
+	public interface Combiner<T> {
+		public T combine(T left, T right);
+	}
+
+	/**
+	 * A reduction over rows holding primitive numeric values. The Key is the
+	 * Exchange's own key, positioned on the current row and only valid during
+	 * the call; nothing is decoded or allocated unless the reduction does so.
+	 */
+	public interface LongReduction {
+		public long reduce(Key key, long value, long accumulated);
+	}
+
+	/** The double-valued counterpart of LongReduction */
+	public interface DoubleReduction {
+		public double reduce(Key key, double value, double accumulated);
+	}
+
 	/**
 	 * A Filter is a user-specified filter that specifies whether a row should
 	 * be matched by the traversal.
@@ -95,15 +160,119 @@ public class Functional {
 	public interface Filter<K, V> extends Mapping<K, V, Boolean> {
 	}
 
+	/** Which unmatched rows a merge join produces (besides the matches) */
+	public enum JoinType {
+		INNER, LEFT_OUTER, FULL_OUTER;
+	}
+
+	/**
+	 * Maps a joined pair of rows to a user-specified type T. For outer joins,
+	 * the side without a matching row is null. The rows are only valid for the
+	 * duration of the call (they read from the cursors, which move on
+	 * afterwards), so anything to be kept must be copied out.
+	 */
+	public interface JoinMapping<LK, LV, RK, RV, T> {
+		public T map(Pair<LK, LV> left, Pair<RK, RV> right);
+	}
+
+	/**
+	 * Converts values to and from compact byte arrays, in place of
+	 * Persistit's default serialization (which, for classes without a
+	 * registered coder, stores class metadata with every value). The bytes
+	 * are stored as a Persistit byte array; null values are stored as null
+	 * and never passed to the codec.
+	 */
+	public interface ValueCodec<V> {
+		public byte[] encode(V value);
+
+		public V decode(byte[] encoded);
+	}
+
+	/**
+	 * Converts keys to and from Persistit Key segments, in place of appending
+	 * the key as a single segment (see CompositeKey.CODEC for keys of several
+	 * segments). decode() reads from the Key's current index.
+	 */
+	public interface KeyCodec<K> {
+		public void append(Key target, K key);
+
+		public K decode(Key source);
+	}
+
+	/**
+	 * Maps a row given as views of its encoded key and value bytes, which are
+	 * the Exchange's own buffers: they are only valid for the duration of the
+	 * call and must not be modified. For a keys-only spec the value view is
+	 * empty.
+	 */
+	public interface RawMapping<T> {
+		public T map(byte[] keyBytes, int keyOffset, int keyLength,
+				byte[] valueBytes, int valueOffset, int valueLength);
+	}
+
+	/**
+	 * Bounds the size of each transaction in a chunked apply: a chunk is
+	 * committed as soon as it reaches either limit (a limit that is zero or
+	 * negative is ignored).
+	 */
+	public static class ChunkSpec {
+		private final int maxMutations;
+		private final long maxBytes;
+
+		public ChunkSpec(int maxMutations) {
+			this(maxMutations, 0L);
+		}
+
+		public ChunkSpec(int maxMutations, long maxBytes) {
+			this.maxMutations = maxMutations;
+			this.maxBytes = maxBytes;
+		}
+
+		public int getMaxMutations() {
+			return maxMutations;
+		}
+
+		public long getMaxBytes() {
+			return maxBytes;
+		}
+
+		public boolean isFull(int mutations, long bytes) {
+			return (maxMutations > 0 && mutations >= maxMutations)
+					|| (maxBytes > 0 && bytes >= maxBytes);
+		}
+	}
+
+	/**
+	 * Receives progress reports from long-running operations: rows read so
+	 * far, mutations written so far, approximate bytes written so far and the
+	 * elapsed time since the operation started.
+	 */
+	public interface ProgressListener {
+		public void progress(long rows, long mutations, long bytes,
+				long elapsedNanos);
+	}
+
 	/**
 	 * Specifies a Traversal, including the cursor Direction (ascending or
 	 * descending), nullable KeyFilter as a primary bounding filter, and
-	 * nullable secondary filter for row-specific filtering.
+	 * nullable secondary filter for row-specific filtering. Further options
+	 * are set with the with*() methods, which return a modified copy.
 	 */
 	public static class TraversalSpec<K, V> {
 		private final Direction direction;
 		private final KeyFilter primaryFilter;
 		private final Filter<K, V> filter;
+		private boolean keysOnly;
+		private boolean deep;
+		private String statsName;
+		private ValueCodec<V> codec;
+		private KeyCodec<K> keyCodec;
+		private K startKey;
+		private boolean startInclusive;
+		private K endKey;
+		private boolean endInclusive;
+		private long offset;
+		private long limit = -1L;
 
 		public TraversalSpec() {
 			this(Direction.ASC, null, null);
@@ -120,6 +289,156 @@ public class Functional {
 			this.filter = filter;
 		}
 
+		private TraversalSpec<K, V> copy() {
+			TraversalSpec<K, V> copy = new TraversalSpec<K, V>(direction,
+					primaryFilter, filter);
+			copy.keysOnly = keysOnly;
+			copy.deep = deep;
+			copy.statsName = statsName;
+			copy.codec = codec;
+			copy.keyCodec = keyCodec;
+			copy.startKey = startKey;
+			copy.startInclusive = startInclusive;
+			copy.endKey = endKey;
+			copy.endInclusive = endInclusive;
+			copy.offset = offset;
+			copy.limit = limit;
+
+			return copy;
+		}
+
+		/**
+		 * Returns a copy of this spec that traverses keys only: value bytes
+		 * are never copied out of the page, and calling getValue() on a row
+		 * throws UnsupportedOperationException.
+		 */
+		public TraversalSpec<K, V> withKeysOnly(boolean keysOnly) {
+			TraversalSpec<K, V> copy = copy();
+			copy.keysOnly = keysOnly;
+
+			return copy;
+		}
+
+		/**
+		 * Returns a copy of this spec that traverses deep, visiting every key
+		 * with a value whatever its depth, instead of only the siblings at the
+		 * depth the traversal starts at. A spec without a KeyFilter is shallow
+		 * by default, like Exchange.next(); trees with multi-segment keys,
+		 * such as CompositeKey ones, need a deep spec. A KeyFilter spec always
+		 * traverses deep, within the filter's depth bounds.
+		 */
+		public TraversalSpec<K, V> withDeep(boolean deep) {
+			TraversalSpec<K, V> copy = copy();
+			copy.deep = deep;
+
+			return copy;
+		}
+
+		/**
+		 * Returns a copy of this spec whose traversals record rows visited,
+		 * rows rejected, bytes decoded and sampled phase timings into the
+		 * TraversalStats of the given name (null turns recording off).
+		 */
+		public TraversalSpec<K, V> withStats(String statsName) {
+			TraversalSpec<K, V> copy = copy();
+			copy.statsName = statsName;
+
+			return copy;
+		}
+
+		/**
+		 * Returns a copy of this spec that decodes values with the given
+		 * codec (null for Persistit's default serialization); it must be the
+		 * codec the rows were written with.
+		 */
+		public TraversalSpec<K, V> withCodec(ValueCodec<V> codec) {
+			TraversalSpec<K, V> copy = copy();
+			copy.codec = codec;
+
+			return copy;
+		}
+
+		/**
+		 * Returns a copy of this spec that encodes and decodes keys with the
+		 * given codec (null for a single Persistit segment), including the
+		 * start and end keys.
+		 */
+		public TraversalSpec<K, V> withKeyCodec(KeyCodec<K> keyCodec) {
+			TraversalSpec<K, V> copy = copy();
+			copy.keyCodec = keyCodec;
+
+			return copy;
+		}
+
+		/**
+		 * Returns a copy of this spec over the given key and every key below
+		 * it in the key hierarchy, such as all keys starting with the
+		 * segments of a shorter CompositeKey; the traversal seeks straight to
+		 * the first of them. The copy is deep (see withDeep), since the keys
+		 * below the prefix are the point.
+		 */
+		public TraversalSpec<K, V> withPrefix(K prefix) {
+			return withStart(prefix, true).withEnd(prefix, true)
+					.withDeep(true);
+		}
+
+		/**
+		 * Returns a copy of this spec that starts at the given key (in
+		 * traversal order, so the highest key of a DESC traversal); the
+		 * traversal seeks straight to it. A null key removes the bound. Like
+		 * the end key, a start key is taken to include the keys below it in
+		 * the key hierarchy: an exclusive bound skips them too.
+		 */
+		public TraversalSpec<K, V> withStart(K startKey, boolean inclusive) {
+			TraversalSpec<K, V> copy = copy();
+			copy.startKey = startKey;
+			copy.startInclusive = inclusive;
+
+			return copy;
+		}
+
+		/**
+		 * Returns a copy of this spec that ends at the given key (in
+		 * traversal order); the traversal stops at the first key past it. A
+		 * null key removes the bound. An inclusive end key includes the keys
+		 * below it in the key hierarchy, so ending at a CompositeKey prefix
+		 * includes every key that starts with it.
+		 */
+		public TraversalSpec<K, V> withEnd(K endKey, boolean inclusive) {
+			TraversalSpec<K, V> copy = copy();
+			copy.endKey = endKey;
+			copy.endInclusive = inclusive;
+
+			return copy;
+		}
+
+		/**
+		 * Returns a copy of this spec that skips the given number of rows
+		 * (after filtering) before producing any.
+		 */
+		public TraversalSpec<K, V> withOffset(long offset) {
+			if (offset < 0) {
+				throw new IllegalArgumentException("offset must not be negative");
+			}
+
+			TraversalSpec<K, V> copy = copy();
+			copy.offset = offset;
+
+			return copy;
+		}
+
+		/**
+		 * Returns a copy of this spec that produces at most the given number
+		 * of rows and then stops without stepping the cursor further; a
+		 * negative limit means no limit.
+		 */
+		public TraversalSpec<K, V> withLimit(long limit) {
+			TraversalSpec<K, V> copy = copy();
+			copy.limit = limit;
+
+			return copy;
+		}
+
 		public Direction getDirection() {
 			return direction;
 		}
@@ -131,6 +450,50 @@ public class Functional {
 		public Filter<K, V> getFilter() {
 			return filter;
 		}
+
+		public boolean isKeysOnly() {
+			return keysOnly;
+		}
+
+		public boolean isDeep() {
+			return deep;
+		}
+
+		public String getStatsName() {
+			return statsName;
+		}
+
+		public ValueCodec<V> getCodec() {
+			return codec;
+		}
+
+		public KeyCodec<K> getKeyCodec() {
+			return keyCodec;
+		}
+
+		public K getStartKey() {
+			return startKey;
+		}
+
+		public boolean isStartInclusive() {
+			return startInclusive;
+		}
+
+		public K getEndKey() {
+			return endKey;
+		}
+
+		public boolean isEndInclusive() {
+			return endInclusive;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getLimit() {
+			return limit;
+		}
 	}
 
 	/**
@@ -173,6 +536,97 @@ public class Functional {
 		return new TraversalImpl<K, V, T>(exchange, traversalSpec, mapping);
 	}
 
+	/**
+	 * Returns a traversal that passes each row of the given TraversalSpec to
+	 * a RawMapping without decoding it, so the traversal itself allocates
+	 * nothing per row. The spec's direction, KeyFilter, bounds, offset and
+	 * limit apply as usual; a secondary Filter still decodes whatever it
+	 * looks at, and codecs are ignored.
+	 */
+	public static <K, V, T> Traversal<K, V, T> mapRaw(Exchange exchange,
+			TraversalSpec<K, V> traversalSpec, RawMapping<T> mapping) {
+		return new RawTraversal<K, V, T>(exchange,
+				new TraversalImpl<K, V, Void>(exchange, traversalSpec, null),
+				traversalSpec != null && traversalSpec.isKeysOnly(), mapping);
+	}
+
+	/**
+	 * Immediately passes each row of the given TraversalSpec to a RawMapping
+	 * (see mapRaw), returning the number of rows.
+	 */
+	public static <K, V, T> long foreachRaw(Exchange exchange,
+			TraversalSpec<K, V> traversalSpec, RawMapping<T> mapping) {
+		TraversalImpl<K, V, Void> cursor = new TraversalImpl<K, V, Void>(
+				exchange, traversalSpec, null);
+		Key key = exchange.getKey();
+		Value value = exchange.getValue();
+		boolean keysOnly = traversalSpec != null && traversalSpec.isKeysOnly();
+		long rows = 0;
+
+		while (cursor.step()) {
+			// a keys-only step leaves whatever the Value last held
+			mapping.map(key.getEncodedBytes(), 0, key.getEncodedSize(),
+					value.getEncodedBytes(), 0,
+					keysOnly ? 0 : value.getEncodedSize());
+			rows += 1;
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Returns a splittable traversal over the given TraversalSpec; trySplit()
+	 * bisects the remaining key range using keys sampled from the tree's
+	 * index pages. Each split traversal creates its own Exchange (not taken
+	 * from the Persistit pool) when it is first advanced, and reads in the
+	 * transaction of the thread that advanced it, if that thread has one
+	 * active; a split may be handed to another thread until then, but must
+	 * stay on that thread afterwards. A spec with an offset or a limit does
+	 * not split.
+	 */
+	public static <K, V> SplittableTraversal<K, V> spliterator(Persistit db,
+			String volume, String tree, TraversalSpec<K, V> traversalSpec) {
+		TraversalSpec<K, V> spec = (traversalSpec == null) ? new TraversalSpec<K, V>()
+				: traversalSpec;
+
+		try {
+			Exchange exchange = db.getExchange(volume, tree, false);
+			try {
+				KeyRange range = KeyRange.fromSpec(exchange, spec);
+
+				return new RangeSplitter<K, V>(db, volume, tree, spec,
+						(range == null) ? new KeyRange(null, false, null,
+								false) : range);
+			} finally {
+				db.releaseExchange(exchange);
+			}
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns a mapping traversal over the given TraversalSpec whose cursor
+	 * stepping and decoding run ahead on a separate thread with its own
+	 * Exchange, buffering up to bufferSize rows; the mapping still runs on
+	 * the caller's thread as hasNext()/next() are called. The producer blocks
+	 * while the buffer is full, an exception on the producer is rethrown from
+	 * hasNext(), and close() stops the producer early. The producer does not
+	 * take part in the caller's transaction, and the spec's Filter runs on
+	 * the producer thread.
+	 */
+	public static <K, V, T> CloseableTraversal<K, V, T> prefetch(
+			Persistit db, String volume, String tree,
+			TraversalSpec<K, V> traversalSpec, Mapping<K, V, T> mapping,
+			int bufferSize) {
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("bufferSize must be positive");
+		}
+
+		return new PrefetchTraversal<K, V, T>(db, volume, tree, traversalSpec,
+				mapping, bufferSize);
+	}
+
 	/**
 	 * Immediately executes a reduction traversal over the full K/V space. For
 	 * each K/V pair in the space, the reduction will be executed over the key,
@@ -204,193 +658,1476 @@ public class Functional {
 	}
 
 	/**
-	 * Returns a mutation traversal over the entire K/V space. As the traversal
-	 * iterates, for each K/V pair in the specified set, the mutation will be
-	 * executed over the key and value. If the iterator is not called, the
-	 * mutations will not be applied.
+	 * Returns a traversal that reduces each group of consecutive rows sharing
+	 * the same first prefixDepth key segments, producing (prefix segments,
+	 * accumulated value) as soon as the prefix changes. Since rows arrive in
+	 * key order, each group is contiguous and only one accumulator is kept at
+	 * a time, however many groups there are. Each group starts from the given
+	 * initial value, which should therefore be immutable. As with reduce(),
+	 * the Reduction gets detached rows it may keep. The traversal is
+	 * always deep (see TraversalSpec.withDeep), since the groups are made of
+	 * multi-segment keys.
 	 */
-	public static <K, V> Traversal<K, V, Mutation<K, V>> apply(
-			final Exchange source, final Template<K, V> dbt,
-			final Mapping<K, V, Mutation<K, V>> mutation, final Exchange target) {
-		return apply(source, dbt, null, mutation, target);
+	public static <K, V, T> Traversal<K, V, Pair<List<Object>, T>> reduceByPrefix(
+			Exchange exchange, TraversalSpec<K, V> traversalSpec,
+			int prefixDepth, Reduction<K, V, T> reduction, T initial) {
+		if (prefixDepth < 1) {
+			throw new IllegalArgumentException("prefixDepth must be positive");
+		}
+
+		if (traversalSpec == null) {
+			traversalSpec = new TraversalSpec<K, V>();
+		}
+
+		return new PrefixReduction<K, V, T>(new TraversalImpl<K, V, Void>(
+				exchange, traversalSpec.withDeep(true), null), exchange.getKey(),
+				prefixDepth, reduction, initial);
 	}
 
 	/**
-	 * Returns a mutation traversal over the given TraversalSpec. As the
-	 * traversal iterates, for each K/V pair in the specified set, the mutation
-	 * will be executed over the key and value. If the iterator is not called,
-	 * the mutations will not be applied.
+	 * Returns a traversal that sort-merge joins two trees on their first
+	 * joinDepth key segments, stepping both cursors forward in key order.
+	 * Keys are compared on their encoded bytes, so join segments must be of
+	 * the same type on both sides. When several left rows share a join key,
+	 * the right cursor re-seeks to the start of the matching group for each
+	 * of them instead of buffering it, so memory use does not depend on group
+	 * size. Both specs must have the same direction and no offset or limit;
+	 * the Exchanges must be distinct. Both sides are traversed deep (see
+	 * TraversalSpec.withDeep).
 	 */
-	public static <K, V> Traversal<K, V, Mutation<K, V>> apply(
-			final Exchange source, final Template<K, V> dbt,
-			final TraversalSpec<K, V> traversalSpec,
-			final Mapping<K, V, Mutation<K, V>> mutation, final Exchange target) {
-		final Mapping<K, V, Mutation<K, V>> mapping = new Mapping<K, V, Mutation<K, V>>() {
-			final int sourceStep = source.getTransaction().getStep();
-			final int targetStep = sourceStep + 1;
+	public static <LK, LV, RK, RV, T> Traversal<LK, LV, T> mergeJoin(
+			Exchange leftExchange, TraversalSpec<LK, LV> leftSpec,
+			Exchange rightExchange, TraversalSpec<RK, RV> rightSpec,
+			int joinDepth, JoinType joinType,
+			JoinMapping<LK, LV, RK, RV, T> mapping) {
+		if (joinDepth < 1) {
+			throw new IllegalArgumentException("joinDepth must be positive");
+		}
+		if (leftExchange == rightExchange) {
+			throw new IllegalArgumentException(
+					"left and right need separate Exchanges");
+		}
 
-			@Override
-			public Mutation<K, V> map(Pair<K, V> row) {
-				Mutation<K, V> m = mutation.map(row);
-				if (m == null) {
-					m = new Mutation<K, V>(MutationType.NONE, row);
-				}
+		if (leftSpec == null) {
+			leftSpec = new TraversalSpec<LK, LV>();
+		}
+		if (rightSpec == null) {
+			rightSpec = new TraversalSpec<RK, RV>();
+		}
 
-				try {
-					target.getTransaction().setStep(targetStep);
+		if (!leftSpec.getDirection().equals(rightSpec.getDirection())) {
+			throw new IllegalArgumentException(
+					"left and right must traverse in the same direction");
+		}
+		if (leftSpec.getOffset() > 0 || leftSpec.getLimit() >= 0
+				|| rightSpec.getOffset() > 0 || rightSpec.getLimit() >= 0) {
+			throw new IllegalArgumentException(
+					"offset and limit are not supported by mergeJoin");
+		}
 
-					switch (m.getType()) {
-					case NONE:
-						break;
-					case INSERT_OR_UPDATE:
-						dbt.insertOrUpdate(target, m.getInstance().getKey(), m
-								.getInstance().getValue());
-						break;
-					case DELETE:
-						dbt.delete(target, m.getInstance().getKey());
-						break;
-					default:
-						throw new IllegalArgumentException();
-					}
+		return new MergeJoin<LK, LV, RK, RV, T>(leftExchange,
+				leftSpec.withDeep(true), rightExchange,
+				rightSpec.withDeep(true), joinDepth, joinType, mapping);
+	}
 
-					return m;
-				} finally {
-					source.getTransaction().setStep(sourceStep);
-				}
-			}
-		};
+	/**
+	 * Immediately executes a primitive reduction over the given TraversalSpec.
+	 * Each value is read directly from the Exchange's Value as a long (int,
+	 * short and byte values are widened), so the per-row loop does not box or
+	 * allocate. A secondary Filter, if present, is still given a Pair and
+	 * decodes whatever it looks at.
+	 */
+	public static <K, V> long reduceLong(final Exchange exchange,
+			final TraversalSpec<K, V> traversalSpec,
+			final LongReduction reduction, final long initial) {
+		TraversalImpl<K, V, Void> cursor = primitiveCursor(exchange,
+				traversalSpec);
+		Key key = exchange.getKey();
+		long accum = initial;
+
+		while (cursor.step()) {
+			accum = reduction.reduce(key.reset(),
+					longValue(exchange.getValue()), accum);
+		}
 
-		return new TraversalImpl<K, V, Mutation<K, V>>(source, traversalSpec,
-				mapping);
+		return accum;
 	}
 
 	/**
-	 * Specifies a reduction using a given mapping and so-far accumulated value.
+	 * Immediately executes a primitive reduction over the given TraversalSpec.
+	 * Each value is read directly from the Exchange's Value as a double
+	 * (float and integral values are widened), so the per-row loop does not
+	 * box or allocate.
 	 */
-	private static class MapReduction<K, V, T> implements Mapping<K, V, T> {
-		T accum;
-		Reduction<K, V, T> r;
+	public static <K, V> double reduceDouble(final Exchange exchange,
+			final TraversalSpec<K, V> traversalSpec,
+			final DoubleReduction reduction, final double initial) {
+		TraversalImpl<K, V, Void> cursor = primitiveCursor(exchange,
+				traversalSpec);
+		Key key = exchange.getKey();
+		double accum = initial;
+
+		while (cursor.step()) {
+			accum = reduction.reduce(key.reset(),
+					doubleValue(exchange.getValue()), accum);
+		}
 
-		public MapReduction(T initial, Reduction<K, V, T> r) {
-			accum = initial;
-			this.r = r;
+		return accum;
+	}
+
+	private static <K, V> TraversalImpl<K, V, Void> primitiveCursor(
+			Exchange exchange, TraversalSpec<K, V> traversalSpec) {
+		if (traversalSpec != null && traversalSpec.getCodec() != null) {
+			throw new IllegalArgumentException(
+					"primitive reductions read Persistit values; not a codec");
 		}
 
-		public T map(Pair<K, V> row) {
-			accum = r.reduce(row, accum);
+		return valueCursor(exchange, traversalSpec);
+	}
 
-			return accum;
+	private static <K, V> TraversalImpl<K, V, Void> valueCursor(
+			Exchange exchange, TraversalSpec<K, V> traversalSpec) {
+		if (traversalSpec != null && traversalSpec.isKeysOnly()) {
+			throw new IllegalArgumentException(
+					"this operation needs values; not keys-only");
 		}
 
-		public T getAccum() {
-			return accum;
+		return new TraversalImpl<K, V, Void>(exchange, traversalSpec, null);
+	}
+
+	/** Appends a key to the Key, with the codec if there is one */
+	static <K> void encodeKey(Key target, K key, KeyCodec<K> codec) {
+		if (codec == null) {
+			target.append(key);
+		} else {
+			codec.append(target, key);
+		}
+	}
+
+	/** Decodes a key written by encodeKey, from the Key's current index */
+	static <K> K decodeKey(Key source, KeyCodec<K> codec) {
+		if (codec == null) {
+			return (K) source.decode();
+		}
+
+		return codec.decode(source);
+	}
+
+	/** Stores a value in the Value, with the codec if there is one */
+	static <V> void encodeValue(Value target, V value, ValueCodec<V> codec) {
+		if (codec == null || value == null) {
+			target.put(value);
+		} else {
+			target.putByteArray(codec.encode(value));
+		}
+	}
+
+	/** Reads a defined Value written by encodeValue with the same codec */
+	static <V> V decodeValue(Value source, ValueCodec<V> codec) {
+		if (codec == null || source.isNull()) {
+			return (V) source.get();
 		}
+
+		return codec.decode(source.getByteArray());
 	}
 
 	/**
-	 * General implementation of a functional traversal using a Persistit
-	 * exchange.
+	 * Steps an Exchange over the rows selected by a TraversalSpec, leaving
+	 * the Exchange's Key and Value on each row without decoding them (a
+	 * secondary Filter still decodes whatever it looks at).
 	 */
-	private static class TraversalImpl<K, V, T> implements Traversal<K, V, T> {
-		private final KeyFilter primaryFilter;
-		private final Filter<K, V> filter;
-		private final Mapping<K, V, T> mapping;
-		private final boolean isAscending;
-		private Exchange exchange;
-		private Pair<K, V> nextItem;
+	interface RowCursor {
+		/** Moves to the next selected row; returns false when exhausted */
+		public boolean step();
+	}
 
-		public TraversalImpl(Exchange exchange,
-				TraversalSpec<K, V> traversalSpec, Mapping<K, V, T> mapping) {
-			if (traversalSpec == null) {
-				traversalSpec = new TraversalSpec<K, V>();
-			}
+	static <K, V> RowCursor rowCursor(Exchange exchange,
+			TraversalSpec<K, V> traversalSpec) {
+		return valueCursor(exchange, traversalSpec);
+	}
 
-			this.exchange = exchange;
-			this.primaryFilter = traversalSpec.getPrimaryFilter();
-			this.filter = traversalSpec.getFilter();
-			this.mapping = mapping;
+	private static long longValue(Value value) {
+		Class<?> type = value.getType();
+
+		if (type == Long.TYPE || type == Long.class) {
+			return value.getLong();
+		} else if (type == Integer.TYPE || type == Integer.class) {
+			return value.getInt();
+		} else if (type == Short.TYPE || type == Short.class) {
+			return value.getShort();
+		} else if (type == Byte.TYPE || type == Byte.class) {
+			return value.getByte();
+		}
 
-			this.isAscending = traversalSpec.getDirection().equals(
-					Direction.ASC);
+		// let Persistit report the conversion error
+		return value.getLong();
+	}
 
-			Key.EdgeValue edgeValue = this.isAscending ? Key.BEFORE : Key.AFTER;
-			exchange.getKey().to(edgeValue);
+	private static double doubleValue(Value value) {
+		Class<?> type = value.getType();
 
-			nextItem = advance();
+		if (type == Double.TYPE || type == Double.class) {
+			return value.getDouble();
+		} else if (type == Float.TYPE || type == Float.class) {
+			return value.getFloat();
 		}
 
-		private Pair<K, V> advance() {
-			Pair<K, V> toReturn = null;
+		return longValue(value);
+	}
 
-			for (;;) {
-				boolean foundRow = false;
+	/**
+	 * Immediately executes a reduction traversal over the given TraversalSpec
+	 * using up to the given number of threads. The key space is split into
+	 * ranges (sampled from the tree's index pages), each range is reduced
+	 * starting from the identity value on its own Exchange, and the partial
+	 * results are merged with the combiner in traversal order. For an
+	 * associative reduction (with a matching combiner and identity) the result
+	 * is the same as the sequential reduce(). The worker threads do not take
+	 * part in the caller's transaction, and the secondary Filter and reduction
+	 * must be safe to call from several threads at once. The spec's start and
+	 * end keys are honored, but it may not have an offset or a limit.
+	 */
+	public static <K, V, T> T parallelReduce(final Persistit db,
+			final String volume, final String tree,
+			final TraversalSpec<K, V> traversalSpec,
+			final Reduction<K, V, T> reduction, final Combiner<T> combiner,
+			final T identity, final int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive");
+		}
 
+		if (traversalSpec != null
+				&& (traversalSpec.getOffset() > 0 || traversalSpec
+						.getLimit() >= 0)) {
+			throw new IllegalArgumentException(
+					"offset and limit cannot be split across threads");
+		}
+
+		final List<byte[]> boundaries;
+		try {
+			Exchange exchange = db.getExchange(volume, tree, false);
+			try {
+				// only boundaries inside the spec's start/end keys split work
+				KeyRange bounds = (traversalSpec == null) ? null : KeyRange
+						.fromSpec(exchange, traversalSpec);
+				boundaries = splitKeyRange(exchange, parallelism, bounds);
+			} finally {
+				db.releaseExchange(exchange);
+			}
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+
+		int ranges = boundaries.size() + 1;
+		ExecutorService executor = Executors.newFixedThreadPool(ranges);
+		List<Future<T>> partials = new ArrayList<Future<T>>(ranges);
+
+		try {
+			for (int i = 0; i < ranges; i++) {
+				final KeyRange range = new KeyRange((i == 0) ? null
+						: boundaries.get(i - 1), true,
+						(i == ranges - 1) ? null : boundaries.get(i), false);
+
+				partials.add(executor.submit(new Callable<T>() {
+					@Override
+					public T call() throws Exception {
+						Exchange exchange = db.getExchange(volume, tree, false);
+						try {
+							MapReduction<K, V, T> mr = new MapReduction<K, V, T>(
+									identity, reduction);
+							new TraversalImpl<K, V, T>(exchange, traversalSpec,
+									mr, range).traverseAll();
+
+							return mr.getAccum();
+						} finally {
+							db.releaseExchange(exchange);
+						}
+					}
+				}));
+			}
+
+			boolean isAscending = traversalSpec == null
+					|| traversalSpec.getDirection().equals(Direction.ASC);
+
+			T accum = identity;
+			for (int i = 0; i < ranges; i++) {
+				Future<T> partial = partials.get(isAscending ? i : ranges - 1
+						- i);
+				accum = combiner.combine(accum, partial.get());
+			}
+
+			return accum;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Returns up to (parts - 1) ascending encoded keys strictly inside the
+	 * given range (null for the whole tree) that split it into roughly equal
+	 * ranges. Keys are sampled from the level above the leaves, falling back
+	 * to the leaves themselves for small trees.
+	 */
+	private static List<byte[]> splitKeyRange(Exchange exchange, int parts,
+			KeyRange range) throws PersistitException {
+		List<byte[]> boundaries = new ArrayList<byte[]>();
+		if (parts < 2) {
+			return boundaries;
+		}
+
+		Key start = Key.LEFT_GUARD_KEY;
+		Key end = Key.RIGHT_GUARD_KEY;
+		if (range != null && range.low != null) {
+			start = new Key(exchange.getKey());
+			toEncodedKey(start, range.low);
+		}
+		if (range != null && range.high != null) {
+			end = new Key(exchange.getKey());
+			toEncodedKey(end, range.high);
+		}
+
+		for (int treeDepth = 1; treeDepth >= 0; treeDepth--) {
+			KeyHistogram histogram = exchange.computeHistogram(start, end,
+					parts, 0, null, treeDepth);
+			List<KeyHistogram.KeyCount> samples = histogram.getSamples();
+
+			if (samples.size() >= parts || treeDepth == 0) {
+				// the last sample closes the final bucket, so drop it
+				for (int i = 0; i < samples.size() - 1; i++) {
+					byte[] bytes = samples.get(i).getBytes();
+					if (range != null && !range.strictlyContains(bytes)) {
+						continue;
+					}
+
+					if (boundaries.isEmpty()
+							|| compareKeyBytes(bytes, bytes.length,
+									boundaries.get(boundaries.size() - 1)) > 0) {
+						boundaries.add(bytes);
+					}
+				}
+
+				break;
+			}
+		}
+
+		return boundaries;
+	}
+
+	private static void toEncodedKey(Key key, byte[] encoded) {
+		System.arraycopy(encoded, 0, key.getEncodedBytes(), 0, encoded.length);
+		key.setEncodedSize(encoded.length);
+	}
+
+	/** Compares encoded key bytes in Persistit key order (unsigned) */
+	static int compareKeyBytes(byte[] a, int aLength, byte[] b) {
+		return compareKeyBytes(a, aLength, b, b.length);
+	}
+
+	static int compareKeyBytes(byte[] a, int aLength, byte[] b, int bLength) {
+		int length = Math.min(aLength, bLength);
+		for (int i = 0; i < length; i++) {
+			int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+
+		return aLength - bLength;
+	}
+
+	/**
+	 * Returns a mutation traversal over the entire K/V space. As the traversal
+	 * iterates, for each K/V pair in the specified set, the mutation will be
+	 * executed over the key and value. If the iterator is not called, the
+	 * mutations will not be applied.
+	 */
+	public static <K, V> Traversal<K, V, Mutation<K, V>> apply(
+			final Exchange source, final Template<K, V> dbt,
+			final Mapping<K, V, Mutation<K, V>> mutation, final Exchange target) {
+		return apply(source, dbt, null, mutation, target);
+	}
+
+	/**
+	 * Returns a mutation traversal over the given TraversalSpec. As the
+	 * traversal iterates, for each K/V pair in the specified set, the mutation
+	 * will be executed over the key and value. If the iterator is not called,
+	 * the mutations will not be applied.
+	 */
+	public static <K, V> Traversal<K, V, Mutation<K, V>> apply(
+			final Exchange source, final Template<K, V> dbt,
+			final TraversalSpec<K, V> traversalSpec,
+			final Mapping<K, V, Mutation<K, V>> mutation, final Exchange target) {
+		return apply(source, dbt, traversalSpec, mutation, target, null);
+	}
+
+	/**
+	 * Immediately executes a mutation traversal over the given TraversalSpec,
+	 * committing a separate transaction for each chunk of mutations bounded by
+	 * the ChunkSpec. Each new chunk resumes the source traversal from the
+	 * first row that was not yet processed, and the listener (if any) is
+	 * notified after every commit. Within a chunk, reads do not see the
+	 * chunk's own writes (as with apply); across chunks, rows written by
+	 * earlier chunks are visible. Must be called outside of a transaction;
+	 * returns the number of mutations applied.
+	 */
+	public static <K, V> long apply(final Exchange source,
+			final Template<K, V> dbt, final TraversalSpec<K, V> traversalSpec,
+			final Mapping<K, V, Mutation<K, V>> mutation,
+			final Exchange target, final ChunkSpec chunkSpec,
+			final ProgressListener listener) {
+		Transaction txn = source.getTransaction();
+		if (txn.isActive()) {
+			throw new IllegalStateException(
+					"chunked apply must manage its own transactions");
+		}
+
+		boolean isAscending = traversalSpec == null
+				|| traversalSpec.getDirection().equals(Direction.ASC);
+		long start = System.nanoTime();
+		long rows = 0;
+		long mutations = 0;
+		long bytes = 0;
+		KeyRange range = null;
+		TraversalSpec<K, V> spec = traversalSpec;
+
+		try {
+			for (;;) {
+				boolean hasMore = false;
+				int chunkMutations = 0;
+				long chunkBytes = 0;
+
+				txn.begin();
 				try {
+					TraversalImpl<K, V, Mutation<K, V>> iter = apply(source,
+							dbt, spec, mutation, target, range);
+
+					while (iter.hasNext()) {
+						Mutation<K, V> m = iter.next();
+						rows += 1;
+
+						if (m.getType().equals(MutationType.NONE)) {
+							continue;
+						}
+
+						chunkMutations += 1;
+						chunkBytes += target.getKey().getEncodedSize();
+						if (m.getType().equals(MutationType.INSERT_OR_UPDATE)) {
+							chunkBytes += target.getValue().getEncodedSize();
+						}
+
+						if (chunkSpec.isFull(chunkMutations, chunkBytes)) {
+							hasMore = iter.hasNext();
+							break;
+						}
+					}
+
+					if (hasMore) {
+						iter.finishStats();
+
+						// the traversal reads one row ahead, so the source
+						// is positioned on the first unprocessed row
+						Key key = source.getKey();
+						byte[] resumeKey = new byte[key.getEncodedSize()];
+						System.arraycopy(key.getEncodedBytes(), 0, resumeKey,
+								0, resumeKey.length);
+						range = isAscending ? new KeyRange(resumeKey, true,
+								null, false) : new KeyRange(null, false,
+								resumeKey, true);
+
+						// the offset was used up by the first chunk, and the
+						// limit is shared by all of them
+						if (spec != null) {
+							spec = spec.withOffset(0).withLimit(
+									(traversalSpec.getLimit() < 0) ? -1L
+											: traversalSpec.getLimit() - rows);
+						}
+					}
+
+					txn.commit();
+				} finally {
+					txn.end();
+				}
+
+				mutations += chunkMutations;
+				bytes += chunkBytes;
+
+				if (listener != null) {
+					listener.progress(rows, mutations, bytes, System.nanoTime()
+							- start);
+				}
+
+				if (!hasMore) {
+					return mutations;
+				}
+			}
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static <K, V> TraversalImpl<K, V, Mutation<K, V>> apply(
+			final Exchange source, final Template<K, V> dbt,
+			final TraversalSpec<K, V> traversalSpec,
+			final Mapping<K, V, Mutation<K, V>> mutation,
+			final Exchange target, final KeyRange range) {
+		final Mapping<K, V, Mutation<K, V>> mapping = new Mapping<K, V, Mutation<K, V>>() {
+			final int sourceStep = source.getTransaction().getStep();
+			final int targetStep = sourceStep + 1;
+
+			@Override
+			public Mutation<K, V> map(Pair<K, V> row) {
+				Mutation<K, V> m = mutation.map(row);
+				if (m == null) {
+					m = new Mutation<K, V>(MutationType.NONE, row);
+				}
+
+				try {
+					target.getTransaction().setStep(targetStep);
+
+					switch (m.getType()) {
+					case NONE:
+						break;
+					case INSERT_OR_UPDATE:
+						dbt.insertOrUpdate(target, m.getInstance().getKey(), m
+								.getInstance().getValue());
+						break;
+					case DELETE:
+						dbt.delete(target, m.getInstance().getKey());
+						break;
+					default:
+						throw new IllegalArgumentException();
+					}
+
+					return m;
+				} finally {
+					source.getTransaction().setStep(sourceStep);
+				}
+			}
+		};
+
+		return new TraversalImpl<K, V, Mutation<K, V>>(source, traversalSpec,
+				mapping, range);
+	}
+
+	/**
+	 * Specifies a reduction using a given mapping and so-far accumulated value.
+	 */
+	private static class MapReduction<K, V, T> implements Mapping<K, V, T> {
+		T accum;
+		Reduction<K, V, T> r;
+
+		public MapReduction(T initial, Reduction<K, V, T> r) {
+			accum = initial;
+			this.r = r;
+		}
+
+		public T map(Pair<K, V> row) {
+			accum = r.reduce(row, accum);
+
+			return accum;
+		}
+
+		public T getAccum() {
+			return accum;
+		}
+	}
+
+	/**
+	 * A range of encoded keys (in Persistit key order, independent of the
+	 * traversal direction); a null bound leaves that end of the range open.
+	 */
+	private static class KeyRange {
+		private final byte[] low;
+		private final boolean lowInclusive;
+		private final byte[] high;
+		private final boolean highInclusive;
+
+		public KeyRange(byte[] low, boolean lowInclusive, byte[] high,
+				boolean highInclusive) {
+			this.low = low;
+			this.lowInclusive = lowInclusive;
+			this.high = high;
+			this.highInclusive = highInclusive;
+		}
+
+		/**
+		 * Returns the start/end bounds of the spec as a range (null if it has
+		 * none), encoding the keys with the exchange's Key. An inclusive high
+		 * bound and an exclusive low bound are moved past the keys below the
+		 * bound key (by appending Key.AFTER), so a bound covers its whole
+		 * subtree.
+		 */
+		public static <K> KeyRange fromSpec(Exchange exchange,
+				TraversalSpec<K, ?> traversalSpec) {
+			if (traversalSpec.getStartKey() == null
+					&& traversalSpec.getEndKey() == null) {
+				return null;
+			}
+
+			boolean isAscending = traversalSpec.getDirection().equals(
+					Direction.ASC);
+			K low = isAscending ? traversalSpec.getStartKey() : traversalSpec
+					.getEndKey();
+			boolean lowInclusive = isAscending ? traversalSpec
+					.isStartInclusive() : traversalSpec.isEndInclusive();
+			K high = isAscending ? traversalSpec.getEndKey() : traversalSpec
+					.getStartKey();
+			boolean highInclusive = isAscending ? traversalSpec
+					.isEndInclusive() : traversalSpec.isStartInclusive();
+
+			KeyCodec<K> keyCodec = traversalSpec.getKeyCodec();
+
+			return new KeyRange(
+					encode(exchange, low, keyCodec, !lowInclusive),
+					lowInclusive, encode(exchange, high, keyCodec,
+							highInclusive), highInclusive);
+		}
+
+		/** Returns true if the key is strictly between the two bounds */
+		public boolean strictlyContains(byte[] key) {
+			return (low == null || compareKeyBytes(key, key.length, low) > 0)
+					&& (high == null || compareKeyBytes(key, key.length, high) < 0);
+		}
+
+		/** Returns the range of keys in both ranges (null means unbounded) */
+		public static KeyRange intersect(KeyRange a, KeyRange b) {
+			if (a == null) {
+				return b;
+			} else if (b == null) {
+				return a;
+			}
+
+			int lowCmp = compareBounds(a.low, b.low, -1);
+			int highCmp = compareBounds(a.high, b.high, 1);
+
+			return new KeyRange(
+					(lowCmp >= 0) ? a.low : b.low,
+					(lowCmp > 0) ? a.lowInclusive : (lowCmp < 0) ? b.lowInclusive
+							: a.lowInclusive && b.lowInclusive,
+					(highCmp <= 0) ? a.high : b.high,
+					(highCmp < 0) ? a.highInclusive
+							: (highCmp > 0) ? b.highInclusive : a.highInclusive
+									&& b.highInclusive);
+		}
+
+		/** Compares two bounds, where null is open (sorts as openSign) */
+		private static int compareBounds(byte[] a, byte[] b, int openSign) {
+			if (a == null) {
+				return (b == null) ? 0 : openSign;
+			} else if (b == null) {
+				return -openSign;
+			}
+
+			return compareKeyBytes(a, a.length, b);
+		}
+
+		private static <K> byte[] encode(Exchange exchange, K value,
+				KeyCodec<K> keyCodec, boolean pastSubtree) {
+			if (value == null) {
+				return null;
+			}
+
+			Key key = exchange.getKey();
+			key.clear();
+			encodeKey(key, value, keyCodec);
+			if (pastSubtree) {
+				key.append(Key.AFTER);
+			}
+
+			byte[] encoded = new byte[key.getEncodedSize()];
+			System.arraycopy(key.getEncodedBytes(), 0, encoded, 0,
+					encoded.length);
+
+			return encoded;
+		}
+	}
+
+	/**
+	 * General implementation of a functional traversal using a Persistit
+	 * exchange.
+	 */
+	private static class TraversalImpl<K, V, T> implements Traversal<K, V, T>,
+			RowCursor {
+		private final KeyFilter primaryFilter;
+		private final Filter<K, V> filter;
+		private final Mapping<K, V, T> mapping;
+		private final boolean isAscending;
+		private final CursorPair<K, V> cursorPair;
+		private final KeyRange range;
+		private final TraversalStats.Recorder recorder;
+		private Exchange exchange;
+		private final Key.Direction stepDirection;
+		private final int shallowDepth;
+		private final int minimumBytes;
+		private Key.Direction firstDirection;
+		private long toSkip;
+		private long remaining;
+		private boolean started;
+		private Pair<K, V> nextItem;
+
+		public TraversalImpl(Exchange exchange,
+				TraversalSpec<K, V> traversalSpec, Mapping<K, V, T> mapping) {
+			this(exchange, traversalSpec, mapping, null);
+		}
+
+		/**
+		 * Creates a traversal restricted to the given encoded key range (null
+		 * for the whole tree), intersected with the spec's start and end keys.
+		 */
+		public TraversalImpl(Exchange exchange,
+				TraversalSpec<K, V> traversalSpec, Mapping<K, V, T> mapping,
+				KeyRange range) {
+			if (traversalSpec == null) {
+				traversalSpec = new TraversalSpec<K, V>();
+			}
+
+			this.exchange = exchange;
+			this.primaryFilter = traversalSpec.getPrimaryFilter();
+			this.filter = traversalSpec.getFilter();
+			this.mapping = mapping;
+
+			this.isAscending = traversalSpec.getDirection().equals(
+					Direction.ASC);
+			this.stepDirection = this.isAscending ? Key.GT : Key.LT;
+			this.shallowDepth = (traversalSpec.isDeep() || this.primaryFilter != null) ? 0
+					: startDepth(exchange, traversalSpec);
+			this.minimumBytes = traversalSpec.isKeysOnly() ? 0
+					: Integer.MAX_VALUE;
+			this.recorder = (traversalSpec.getStatsName() == null) ? null
+					: TraversalStats.forName(traversalSpec.getStatsName())
+							.newRecorder();
+			this.cursorPair = new CursorPair<K, V>(exchange,
+					traversalSpec.isKeysOnly(), traversalSpec.getKeyCodec(),
+					traversalSpec.getCodec(), recorder);
+			this.toSkip = traversalSpec.getOffset();
+			this.remaining = (traversalSpec.getLimit() < 0) ? Long.MAX_VALUE
+					: traversalSpec.getLimit();
+
+			range = KeyRange.intersect(
+					KeyRange.fromSpec(exchange, traversalSpec), range);
+			this.range = range;
+
+			// seek straight to the start of the range
+			byte[] startKey = (range == null) ? null
+					: this.isAscending ? range.low : range.high;
+			if (startKey != null) {
+				toEncodedKey(exchange.getKey(), startKey);
+
+				if (this.isAscending) {
+					this.firstDirection = range.lowInclusive ? Key.GTEQ
+							: Key.GT;
+				} else {
+					this.firstDirection = range.highInclusive ? Key.LTEQ
+							: Key.LT;
+				}
+
+				// a shallow step from a deeper key (a bound moved past its
+				// subtree, or a split key) would stay among that key's
+				// siblings, so seek from its ancestor at the traversal's
+				// depth; the ancestor sorts just before the deeper key
+				if (shallowDepth > 0
+						&& truncate(exchange.getKey(), shallowDepth)) {
+					this.firstDirection = this.isAscending ? Key.GT
+							: Key.LTEQ;
+				}
+			} else {
+				// clear() first: to() only replaces the last segment, so a
+				// multi-segment key left on the Exchange would otherwise
+				// start the traversal inside its parent
+				Key.EdgeValue edgeValue = this.isAscending ? Key.BEFORE
+						: Key.AFTER;
+				exchange.getKey().clear().append(edgeValue);
+			}
+		}
+
+		private Pair<K, V> advance() {
+			return step() ? cursorPair.detach() : null;
+		}
+
+		/**
+		 * Returns the depth a shallow traversal steps at: that of the spec's
+		 * start key, or 1 without one.
+		 */
+		private static <K> int startDepth(Exchange exchange,
+				TraversalSpec<K, ?> traversalSpec) {
+			if (traversalSpec.getStartKey() == null) {
+				return 1;
+			}
+
+			Key key = exchange.getKey();
+			key.clear();
+			encodeKey(key, traversalSpec.getStartKey(),
+					traversalSpec.getKeyCodec());
+
+			return key.getDepth();
+		}
+
+		/** Cuts the key to its first depth segments; false if it had no more */
+		private static boolean truncate(Key key, int depth) {
+			int size = key.getEncodedSize();
+			int index = key.indexTo(depth).getIndex();
+			if (index >= size) {
+				return false;
+			}
+
+			key.setEncodedSize(index);
+
+			return true;
+		}
+
+		/** Returns the row the cursor is on, valid until the next step */
+		public Pair<K, V> row() {
+			return cursorPair;
+		}
+
+		/** Returns a detached copy of the row the cursor is on */
+		public Pair<K, V> current() {
+			return cursorPair.detach();
+		}
+
+		/**
+		 * Moves the cursor to the next row that is in range and passes both
+		 * filters, leaving the cursor pair bound to it; returns false once the
+		 * traversal is exhausted.
+		 */
+		public boolean step() {
+			if (remaining == 0) {
+				// the limit was reached; the cursor is not moved again
+				finishStats();
+
+				return false;
+			}
+
+			for (;;) {
+				cursorPair.invalidate();
+
+				try {
+					Key.Direction direction = stepDirection;
+					if (firstDirection != null) {
+						direction = firstDirection;
+						firstDirection = null;
+					}
+
+					long stepStart = (recorder == null) ? 0L : recorder
+							.beginStep();
+
+					// traverse() moves the cursor and reports whether it
+					// found a row, so each row costs a single cursor step
+					boolean foundRow;
 					if (this.primaryFilter == null) {
-						if (this.isAscending) {
-							if (!exchange.hasNext()) {
-								return null;
+						foundRow = exchange.traverse(direction,
+								shallowDepth == 0, minimumBytes);
+					} else {
+						foundRow = exchange.traverse(direction, primaryFilter,
+								minimumBytes);
+						if (foundRow
+								&& !primaryFilter.selected(exchange.getKey())) {
+							if (recorder != null) {
+								recorder.rejectedByKeyFilter();
+							}
+
+							foundRow = false;
+						}
+					}
+
+					if (!foundRow || !inRange()) {
+						finishStats();
+
+						return false;
+					}
+
+					cursorPair.reset();
+
+					boolean accepted;
+					if (recorder == null) {
+						accepted = filter == null || filter.map(cursorPair);
+					} else {
+						recorder.endStep(stepStart);
+
+						long filterStart = recorder.beginFilter();
+						accepted = filter == null || filter.map(cursorPair);
+						recorder.endFilter(filterStart, accepted);
+					}
+
+					if (!accepted) {
+						continue;
+					}
+
+					if (toSkip > 0) {
+						toSkip -= 1;
+						continue;
+					}
+
+					remaining -= 1;
+					if (recorder != null) {
+						recorder.emitted();
+					}
+
+					return true;
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+
+		/**
+		 * Publishes the counters recorded so far (if recording); called when
+		 * the traversal is exhausted or abandoned.
+		 */
+		public void finishStats() {
+			if (recorder != null) {
+				recorder.flush();
+			}
+		}
+
+		private boolean inRange() {
+			if (range == null) {
+				return true;
+			}
+
+			Key key = exchange.getKey();
+			if (this.isAscending) {
+				if (range.high == null) {
+					return true;
+				}
+
+				int cmp = compareKeyBytes(key.getEncodedBytes(),
+						key.getEncodedSize(), range.high);
+
+				return cmp < 0 || (cmp == 0 && range.highInclusive);
+			}
+
+			if (range.low == null) {
+				return true;
+			}
+
+			int cmp = compareKeyBytes(key.getEncodedBytes(),
+					key.getEncodedSize(), range.low);
+
+			return cmp > 0 || (cmp == 0 && range.lowInclusive);
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (!started) {
+				started = true;
+				nextItem = advance();
+			}
+
+			return nextItem != null;
+		}
+
+		public T next() {
+			if (!hasNext()) {
+				throw new IllegalStateException("next() called on empty iter");
+			}
+
+			Pair<K, V> orig = nextItem;
+			nextItem = advance();
+
+			try {
+				if (recorder == null) {
+					return mapping.map(orig);
+				}
+
+				long mappingStart = recorder.beginMapping();
+				T result = mapping.map(orig);
+				recorder.endMapping(mappingStart);
+
+				return result;
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void traverseAll() {
+			while (hasNext()) {
+				next();
+			}
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * A traversal whose rows are produced by a TraversalImpl on a background
+	 * thread. Rows are handed over in batches through a bounded queue; a
+	 * partial batch is handed over early whenever the consumer is waiting,
+	 * so it gets rows as soon as they are read. close() is only called from
+	 * the consumer's thread.
+	 */
+	private static class PrefetchTraversal<K, V, T> implements
+			CloseableTraversal<K, V, T> {
+		private static final int MAX_BATCH_SIZE = 64;
+		private static final long OFFER_TIMEOUT_MILLIS = 10L;
+
+		private final Mapping<K, V, T> mapping;
+		private final int batchSize;
+		private final BlockingQueue<Batch<K, V>> queue;
+		private final Thread producer;
+		private volatile boolean closed;
+		private volatile boolean waiting;
+		private Batch<K, V> current;
+		private int position;
+		private boolean exhausted;
+
+		public PrefetchTraversal(final Persistit db, final String volume,
+				final String tree, final TraversalSpec<K, V> traversalSpec,
+				Mapping<K, V, T> mapping, int bufferSize) {
+			this.mapping = mapping;
+			this.batchSize = Math.min(MAX_BATCH_SIZE, bufferSize);
+			this.queue = new ArrayBlockingQueue<Batch<K, V>>(
+					(bufferSize + batchSize - 1) / batchSize);
+
+			this.producer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					produce(db, volume, tree, traversalSpec);
+				}
+			}, "persistit-prefetch-" + volume + "-" + tree);
+			this.producer.setDaemon(true);
+			this.producer.start();
+		}
+
+		private void produce(Persistit db, String volume, String tree,
+				TraversalSpec<K, V> traversalSpec) {
+			try {
+				Exchange exchange = db.getExchange(volume, tree, false);
+				try {
+					TraversalImpl<K, V, Void> cursor = new TraversalImpl<K, V, Void>(
+							exchange, traversalSpec, null);
+					List<Pair<K, V>> rows = new ArrayList<Pair<K, V>>(
+							batchSize);
+
+					while (!closed && cursor.step()) {
+						rows.add(cursor.current());
+
+						if (rows.size() == batchSize || waiting) {
+							if (!hand(new Batch<K, V>(rows, null))) {
+								return;
 							}
 
-							foundRow = exchange.next();
-						} else {
-							if (!exchange.hasPrevious()) {
-								return null;
-							}
+							rows = new ArrayList<Pair<K, V>>(batchSize);
+						}
+					}
+
+					cursor.finishStats();
+					if (!rows.isEmpty()) {
+						hand(new Batch<K, V>(rows, null));
+					}
+					hand(new Batch<K, V>(null, null));
+				} finally {
+					db.releaseExchange(exchange);
+				}
+			} catch (Throwable t) {
+				hand(new Batch<K, V>(null, t));
+			}
+		}
+
+		/** Queues the batch; returns false if the traversal was closed */
+		private boolean hand(Batch<K, V> batch) {
+			try {
+				while (!closed) {
+					if (queue.offer(batch, OFFER_TIMEOUT_MILLIS,
+							TimeUnit.MILLISECONDS)) {
+						return true;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			return false;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!exhausted
+					&& (current == null || position == current.rows.size())) {
+				try {
+					waiting = true;
+					current = queue.take();
+					position = 0;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				} finally {
+					waiting = false;
+				}
+
+				if (current.error != null) {
+					exhausted = true;
+					close();
+
+					if (current.error instanceof RuntimeException) {
+						throw (RuntimeException) current.error;
+					}
+
+					throw new RuntimeException(current.error);
+				} else if (current.rows == null) {
+					exhausted = true;
+				}
+			}
+
+			return !exhausted;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new IllegalStateException("next() called on empty iter");
+			}
+
+			try {
+				return mapping.map(current.rows.get(position++));
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
 
-							foundRow = exchange.previous();
-						}
-					} else {
-						try {
-							Key.Direction direction = this.isAscending ? Key.Direction.GT
-									: Key.Direction.LT;
+		@Override
+		public void traverseAll() {
+			try {
+				while (hasNext()) {
+					next();
+				}
+			} finally {
+				close();
+			}
+		}
 
-							foundRow = exchange.traverse(direction,
-									primaryFilter, Integer.MAX_VALUE);
-						} catch (PersistitException e) {
-							throw new RuntimeException(e);
-						}
+		@Override
+		public void close() {
+			closed = true;
+			exhausted = true;
+			queue.clear();
+		}
 
-						foundRow = foundRow
-								&& primaryFilter.selected(exchange.getKey());
-					}
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
 
-					if (!foundRow) {
-						break;
-					}
+	/**
+	 * Reduces runs of rows with equal encoded key prefixes; the current
+	 * group's prefix bytes are kept in a reusable buffer.
+	 */
+	private static class PrefixReduction<K, V, T> implements
+			Traversal<K, V, Pair<List<Object>, T>> {
+		private final TraversalImpl<K, V, Void> cursor;
+		private final Key key;
+		private final int prefixDepth;
+		private final Reduction<K, V, T> reduction;
+		private final T initial;
+		private final byte[] prefix;
+		private int prefixLength;
+		private boolean started;
+		private boolean hasRow;
+
+		public PrefixReduction(TraversalImpl<K, V, Void> cursor, Key key,
+				int prefixDepth, Reduction<K, V, T> reduction, T initial) {
+			this.cursor = cursor;
+			this.key = key;
+			this.prefixDepth = prefixDepth;
+			this.reduction = reduction;
+			this.initial = initial;
+			this.prefix = new byte[key.getMaximumSize()];
+		}
 
-					toReturn = new PairImpl(exchange.getKey().decode(),
-							exchange.getValue().get());
+		@Override
+		public boolean hasNext() {
+			if (!started) {
+				started = true;
+				hasRow = cursor.step();
+			}
 
-					if (filter == null || filter.map(toReturn)) {
-						break;
-					}
-				} catch (Exception e) {
-					throw new RuntimeException(e);
-				}
+			return hasRow;
+		}
+
+		@Override
+		public Pair<List<Object>, T> next() {
+			if (!hasNext()) {
+				throw new IllegalStateException("next() called on empty iter");
+			}
+
+			prefixLength = key.indexTo(prefixDepth).getIndex();
+			System.arraycopy(key.getEncodedBytes(), 0, prefix, 0,
+					prefixLength);
+
+			List<Object> segments = new ArrayList<Object>(prefixDepth);
+			key.reset();
+			while (key.getIndex() < prefixLength) {
+				segments.add(key.decode());
 			}
 
-			return toReturn;
+			T accum = initial;
+			do {
+				accum = reduction.reduce(cursor.current(), accum);
+				hasRow = cursor.step();
+			} while (hasRow && inGroup());
+
+			return new PairImpl<List<Object>, T>(segments, accum);
+		}
+
+		private boolean inGroup() {
+			if (key.indexTo(prefixDepth).getIndex() != prefixLength) {
+				return false;
+			}
+
+			return compareKeyBytes(key.getEncodedBytes(), prefixLength,
+					prefix, prefixLength) == 0;
+		}
+
+		@Override
+		public void traverseAll() {
+			while (hasNext()) {
+				next();
+			}
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Merges two cursors on their encoded join prefixes. hasNext() positions
+	 * the cursors on the next row(s) to emit; next() maps them and then moves
+	 * past them. The encoded start of the last matched right group is kept so
+	 * the right cursor can go back to it for a following left row with the
+	 * same join prefix.
+	 */
+	private static class MergeJoin<LK, LV, RK, RV, T> implements
+			Traversal<LK, LV, T> {
+		private static final int NONE = 0;
+		private static final int MATCH = 1;
+		private static final int LEFT_ONLY = 2;
+		private static final int RIGHT_ONLY = 3;
+
+		private final Exchange rightExchange;
+		private final TraversalSpec<RK, RV> rightSpec;
+		private final int joinDepth;
+		private final JoinType joinType;
+		private final JoinMapping<LK, LV, RK, RV, T> mapping;
+		private final boolean isAscending;
+		private final Key leftKey;
+		private final Key rightKey;
+		private final TraversalImpl<LK, LV, Void> left;
+		private TraversalImpl<RK, RV, Void> right;
+		private final byte[] groupPrefix;
+		private int groupPrefixLength = -1;
+		private byte[] groupStart;
+		private boolean started;
+		private boolean hasLeft;
+		private boolean hasRight;
+		private boolean leftMatched;
+		private boolean done;
+		private int pending = NONE;
+
+		public MergeJoin(Exchange leftExchange,
+				TraversalSpec<LK, LV> leftSpec, Exchange rightExchange,
+				TraversalSpec<RK, RV> rightSpec, int joinDepth,
+				JoinType joinType, JoinMapping<LK, LV, RK, RV, T> mapping) {
+			this.rightExchange = rightExchange;
+			this.rightSpec = rightSpec;
+			this.joinDepth = joinDepth;
+			this.joinType = joinType;
+			this.mapping = mapping;
+			this.isAscending = leftSpec.getDirection().equals(Direction.ASC);
+			this.leftKey = leftExchange.getKey();
+			this.rightKey = rightExchange.getKey();
+			this.left = new TraversalImpl<LK, LV, Void>(leftExchange,
+					leftSpec, null);
+			this.right = new TraversalImpl<RK, RV, Void>(rightExchange,
+					rightSpec, null);
+			this.groupPrefix = new byte[rightKey.getMaximumSize()];
 		}
 
 		@Override
 		public boolean hasNext() {
-			return nextItem != null;
+			if (!started) {
+				started = true;
+				hasLeft = left.step();
+				hasRight = right.step();
+			}
+
+			while (pending == NONE && !done) {
+				position();
+			}
+
+			return pending != NONE;
+		}
+
+		/** Either sets pending or moves a cursor past a row not emitted */
+		private void position() {
+			if (!hasLeft) {
+				if (hasRight && joinType.equals(JoinType.FULL_OUTER)) {
+					pending = RIGHT_ONLY;
+				} else {
+					done = true;
+				}
+
+				return;
+			}
+
+			int cmp = hasRight ? compareJoinKeys() : -1;
+			if (cmp == 0) {
+				pending = MATCH;
+			} else if (cmp < 0) {
+				if (!leftMatched && !joinType.equals(JoinType.INNER)) {
+					pending = LEFT_ONLY;
+				} else {
+					stepLeft();
+				}
+			} else if (joinType.equals(JoinType.FULL_OUTER)) {
+				pending = RIGHT_ONLY;
+			} else {
+				hasRight = right.step();
+			}
 		}
 
+		@Override
 		public T next() {
-			if (nextItem == null) {
+			if (!hasNext()) {
 				throw new IllegalStateException("next() called on empty iter");
 			}
 
-			Pair<K, V> orig = nextItem;
-			nextItem = advance();
+			int emitted = pending;
+			pending = NONE;
+
+			T result;
+			switch (emitted) {
+			case MATCH:
+				result = mapping.map(left.row(), right.row());
+				leftMatched = true;
+				rememberGroup();
+				hasRight = right.step();
+				break;
+			case LEFT_ONLY:
+				result = mapping.map(left.row(), null);
+				stepLeft();
+				break;
+			default:
+				result = mapping.map(null, right.row());
+				hasRight = right.step();
+				break;
+			}
 
-			try {
-				return mapping.map(orig);
-			} catch (Exception e) {
-				throw new RuntimeException(e);
+			return result;
+		}
+
+		/**
+		 * Moves to the next left row; if it has the same join prefix as the
+		 * right group just consumed, the right cursor starts over at that
+		 * group.
+		 */
+		private void stepLeft() {
+			hasLeft = left.step();
+			leftMatched = false;
+
+			if (!hasLeft || groupPrefixLength < 0
+					|| leftKey.indexTo(joinDepth).getIndex() != groupPrefixLength
+					|| compareKeyBytes(leftKey.getEncodedBytes(),
+							groupPrefixLength, groupPrefix, groupPrefixLength) != 0) {
+				return;
+			}
+
+			right.finishStats();
+			right = new TraversalImpl<RK, RV, Void>(rightExchange, rightSpec,
+					null, isAscending ? new KeyRange(groupStart, true, null,
+							false) : new KeyRange(null, false, groupStart,
+							true));
+			hasRight = right.step();
+		}
+
+		private void rememberGroup() {
+			int length = rightKey.indexTo(joinDepth).getIndex();
+			byte[] bytes = rightKey.getEncodedBytes();
+			if (length == groupPrefixLength
+					&& compareKeyBytes(bytes, length, groupPrefix, length) == 0) {
+				return;
+			}
+
+			System.arraycopy(bytes, 0, groupPrefix, 0, length);
+			groupPrefixLength = length;
+			groupStart = new byte[rightKey.getEncodedSize()];
+			System.arraycopy(bytes, 0, groupStart, 0, groupStart.length);
+		}
+
+		private int compareJoinKeys() {
+			int leftLength = leftKey.indexTo(joinDepth).getIndex();
+			int rightLength = rightKey.indexTo(joinDepth).getIndex();
+			int cmp = compareKeyBytes(leftKey.getEncodedBytes(), leftLength,
+					rightKey.getEncodedBytes(), rightLength);
+
+			return isAscending ? cmp : -cmp;
+		}
+
+		@Override
+		public void traverseAll() {
+			while (hasNext()) {
+				next();
+			}
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/** Runs a RawMapping over the rows of a cursor, one row per next() */
+	private static class RawTraversal<K, V, T> implements Traversal<K, V, T> {
+		private final Key key;
+		private final Value value;
+		private final TraversalImpl<K, V, Void> cursor;
+		private final boolean keysOnly;
+		private final RawMapping<T> mapping;
+		private boolean stepped;
+		private boolean hasRow;
+
+		public RawTraversal(Exchange exchange,
+				TraversalImpl<K, V, Void> cursor, boolean keysOnly,
+				RawMapping<T> mapping) {
+			this.key = exchange.getKey();
+			this.value = exchange.getValue();
+			this.cursor = cursor;
+			this.keysOnly = keysOnly;
+			this.mapping = mapping;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (!stepped) {
+				stepped = true;
+				hasRow = cursor.step();
+			}
+
+			return hasRow;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new IllegalStateException("next() called on empty iter");
 			}
+
+			stepped = false;
+
+			return mapping.map(key.getEncodedBytes(), 0, key.getEncodedSize(),
+					value.getEncodedBytes(), 0,
+					keysOnly ? 0 : value.getEncodedSize());
 		}
 
 		@Override
@@ -405,6 +2142,295 @@ public class Functional {
 		}
 	}
 
+	/**
+	 * A SplittableTraversal over a key range. The Exchange and cursor are
+	 * created by the first tryAdvance(), so the Exchange binds the Transaction
+	 * of the thread that consumes the split rather than the one that split
+	 * it; histograms are sampled with a pooled Exchange on the splitting
+	 * thread. Splitting (or failing to split) restarts the cursor on what is
+	 * left of the range.
+	 */
+	private static class RangeSplitter<K, V> implements
+			SplittableTraversal<K, V> {
+		private final Persistit db;
+		private final String volume;
+		private final String tree;
+		private final TraversalSpec<K, V> traversalSpec;
+		private final boolean isAscending;
+		private Exchange exchange;
+		private KeyRange range;
+		private TraversalImpl<K, V, Void> cursor;
+		private boolean started;
+		private boolean exhausted;
+
+		public RangeSplitter(Persistit db, String volume, String tree,
+				TraversalSpec<K, V> traversalSpec, KeyRange range) {
+			this.db = db;
+			this.volume = volume;
+			this.tree = tree;
+			this.traversalSpec = traversalSpec;
+			this.isAscending = traversalSpec.getDirection().equals(
+					Direction.ASC);
+			this.range = range;
+		}
+
+		@Override
+		public boolean tryAdvance(Mapping<K, V, ?> action) {
+			if (exhausted) {
+				return false;
+			}
+
+			if (exchange == null) {
+				try {
+					exchange = new Exchange(db, volume, tree, false);
+				} catch (PersistitException e) {
+					throw new RuntimeException(e);
+				}
+
+				restart(range);
+			}
+
+			if (!cursor.step()) {
+				exhausted = true;
+
+				return false;
+			}
+
+			started = true;
+
+			try {
+				action.map(cursor.current());
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining(Mapping<K, V, ?> action) {
+			while (tryAdvance(action)) {
+				continue;
+			}
+		}
+
+		@Override
+		public SplittableTraversal<K, V> trySplit() {
+			if (exhausted || traversalSpec.getOffset() > 0
+					|| traversalSpec.getLimit() >= 0) {
+				return null;
+			}
+
+			KeyRange remaining = range;
+			if (started) {
+				// the cursor is on the last row handed out
+				Key key = exchange.getKey();
+				byte[] current = new byte[key.getEncodedSize()];
+				System.arraycopy(key.getEncodedBytes(), 0, current, 0,
+						current.length);
+
+				remaining = isAscending ? new KeyRange(current, false,
+						range.high, range.highInclusive) : new KeyRange(
+						range.low, range.lowInclusive, current, false);
+			}
+
+			List<byte[]> boundaries;
+			try {
+				Exchange sampler = db.getExchange(volume, tree, false);
+				try {
+					boundaries = splitKeyRange(sampler, 2, remaining);
+				} finally {
+					db.releaseExchange(sampler);
+				}
+			} catch (PersistitException e) {
+				throw new RuntimeException(e);
+			}
+
+			if (boundaries.isEmpty()) {
+				restart(remaining);
+
+				return null;
+			}
+
+			byte[] middle = boundaries.get(0);
+			KeyRange lower = new KeyRange(remaining.low,
+					remaining.lowInclusive, middle, false);
+			KeyRange upper = new KeyRange(middle, true, remaining.high,
+					remaining.highInclusive);
+
+			restart(isAscending ? upper : lower);
+
+			return new RangeSplitter<K, V>(db, volume, tree, traversalSpec,
+					isAscending ? lower : upper);
+		}
+
+		/** Restarts the cursor on the given range, if there is one yet */
+		private void restart(KeyRange range) {
+			if (cursor != null) {
+				cursor.finishStats();
+			}
+
+			this.range = range;
+			this.cursor = (exchange == null) ? null
+					: new TraversalImpl<K, V, Void>(exchange, traversalSpec,
+							null, range);
+			this.started = false;
+		}
+	}
+
+	/**
+	 * Rows handed from a prefetching producer to its consumer; a batch
+	 * without rows marks the end of the traversal, or its failure.
+	 */
+	private static class Batch<K, V> {
+		private final List<Pair<K, V>> rows;
+		private final Throwable error;
+
+		public Batch(List<Pair<K, V>> rows, Throwable error) {
+			this.rows = rows;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * A Pair backed by the current position of an Exchange. The key and value
+	 * are decoded only when first requested, so rows rejected by a secondary
+	 * Filter never pay for decoding the parts the Filter did not look at. The
+	 * pair is only valid until the cursor advances; rows that escape the
+	 * traversal must be detached first. In a key-only traversal the value is
+	 * never available.
+	 */
+	private static class CursorPair<K, V> implements Pair<K, V> {
+		private final Exchange exchange;
+		private final boolean keysOnly;
+		private final KeyCodec<K> keyCodec;
+		private final ValueCodec<V> codec;
+		private final TraversalStats.Recorder recorder;
+		private boolean valid;
+		private boolean keyDecoded;
+		private boolean valueDecoded;
+		private K key;
+		private V value;
+
+		public CursorPair(Exchange exchange, boolean keysOnly,
+				KeyCodec<K> keyCodec, ValueCodec<V> codec,
+				TraversalStats.Recorder recorder) {
+			this.exchange = exchange;
+			this.keysOnly = keysOnly;
+			this.keyCodec = keyCodec;
+			this.codec = codec;
+			this.recorder = recorder;
+		}
+
+		/** Binds the pair to the row at the current cursor position */
+		public void reset() {
+			valid = true;
+			keyDecoded = false;
+			valueDecoded = false;
+			key = null;
+			value = null;
+		}
+
+		/** Marks the pair stale; called before the cursor moves on */
+		public void invalidate() {
+			valid = false;
+			keyDecoded = false;
+			valueDecoded = false;
+			key = null;
+			value = null;
+		}
+
+		/** Decodes whatever is left and returns an independent copy */
+		public Pair<K, V> detach() {
+			if (keysOnly) {
+				return new KeyOnlyPair<K, V>(getKey());
+			}
+
+			return new PairImpl<K, V>(getKey(), getValue());
+		}
+
+		@Override
+		public K getKey() {
+			if (!keyDecoded) {
+				checkValid();
+
+				if (recorder == null) {
+					key = decodeKey(exchange.getKey().reset(), keyCodec);
+				} else {
+					long start = recorder.beginDecode();
+					key = decodeKey(exchange.getKey().reset(), keyCodec);
+					recorder.endDecode(start, exchange.getKey()
+							.getEncodedSize());
+				}
+
+				keyDecoded = true;
+			}
+
+			return key;
+		}
+
+		@Override
+		public V getValue() {
+			if (keysOnly) {
+				throw KeyOnlyPair.valueUnavailable();
+			}
+
+			if (!valueDecoded) {
+				checkValid();
+
+				if (recorder == null) {
+					value = decodeValue(exchange.getValue(), codec);
+				} else {
+					long start = recorder.beginDecode();
+					value = decodeValue(exchange.getValue(), codec);
+					recorder.endDecode(start, exchange.getValue()
+							.getEncodedSize());
+				}
+
+				valueDecoded = true;
+			}
+
+			return value;
+		}
+
+		private void checkValid() {
+			if (!valid) {
+				throw new IllegalStateException(
+						"row accessed after the traversal advanced");
+			}
+		}
+	}
+
+	/** A row from a key-only traversal; its value was never fetched */
+	private static class KeyOnlyPair<K, V> implements Pair<K, V> {
+		private final K key;
+
+		public KeyOnlyPair(K key) {
+			this.key = key;
+		}
+
+		@Override
+		public K getKey() {
+			return key;
+		}
+
+		@Override
+		public V getValue() {
+			throw valueUnavailable();
+		}
+
+		@Override
+		public String toString() {
+			return "Pair{key=" + ((key != null) ? key.toString() : "null")
+					+ "}";
+		}
+
+		private static UnsupportedOperationException valueUnavailable() {
+			return new UnsupportedOperationException(
+					"values are not fetched in a key-only traversal");
+		}
+	}
+
 	/** Encapsulates a simple Key/Value pair */
 	public static class PairImpl<K, V> implements Pair<K, V> {
 		private final K key;
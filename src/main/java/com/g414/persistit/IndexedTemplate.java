@@ -0,0 +1,375 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.g414.persistit.Functional.Direction;
+import com.g414.persistit.Functional.KeyCodec;
+import com.g414.persistit.Functional.MutationType;
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.RowCursor;
+import com.g414.persistit.Functional.Traversal;
+import com.g414.persistit.Functional.TraversalSpec;
+import com.g414.persistit.Functional.ValueCodec;
+import com.persistit.Exchange;
+import com.persistit.Key;
+import com.persistit.KeyFilter;
+import com.persistit.Persistit;
+import com.persistit.Transaction;
+import com.persistit.exception.PersistitException;
+
+/**
+ * A Template that maintains secondary indexes on attributes of its values.
+ * Each index lives in its own tree (in the base tree's volume) with keys of
+ * (attribute, base key) and null values. Every write through this template
+ * updates the index entries in the same transaction as the base record,
+ * beginning one if none is active; writes made directly through an Exchange
+ * or another template are not indexed.
+ */
+public class IndexedTemplate<K, V> extends Template<K, V> {
+	/**
+	 * Extracts the indexed attribute from a value; null means the value has
+	 * no entry in the index. The attribute must be a type Persistit can
+	 * append to a Key.
+	 */
+	public interface IndexExtractor<V> {
+		public Object extract(V value);
+	}
+
+	private final Map<String, IndexExtractor<V>> indexes;
+
+	/** Creates a template maintaining the given index trees, by tree name */
+	public IndexedTemplate(Map<String, IndexExtractor<V>> indexes) {
+		this(indexes, null);
+	}
+
+	/** Creates a template that also stores values with the given codec */
+	public IndexedTemplate(Map<String, IndexExtractor<V>> indexes,
+			ValueCodec<V> codec) {
+		this(indexes, null, codec);
+	}
+
+	/** Creates a template that also encodes keys with the given key codec */
+	public IndexedTemplate(Map<String, IndexExtractor<V>> indexes,
+			KeyCodec<K> keyCodec, ValueCodec<V> codec) {
+		super(keyCodec, codec);
+		this.indexes = Collections
+				.unmodifiableMap(new LinkedHashMap<String, IndexExtractor<V>>(
+						indexes));
+	}
+
+	public Map<String, IndexExtractor<V>> getIndexes() {
+		return indexes;
+	}
+
+	@Override
+	public boolean insert(final Exchange exchange, final K key, final V value) {
+		return transactional(exchange, new TransactionCallback<Boolean>() {
+			@Override
+			public Boolean inTransaction(Transaction txn) {
+				if (!IndexedTemplate.super.insert(exchange, key, value)) {
+					return false;
+				}
+
+				updateIndexes(exchange, key, null, value);
+
+				return true;
+			}
+		});
+	}
+
+	@Override
+	public boolean update(final Exchange exchange, final K key, final V value) {
+		return transactional(exchange, new TransactionCallback<Boolean>() {
+			@Override
+			public Boolean inTransaction(Transaction txn) {
+				try {
+					exchange.clear();
+					encodeKey(exchange, key);
+					exchange.fetch();
+
+					if (!exchange.getValue().isDefined()) {
+						return false;
+					}
+
+					V previous = decodeValue(exchange);
+					encodeValue(exchange, value);
+					exchange.store();
+
+					updateIndexes(exchange, key, previous, value);
+					mutated(exchange, MutationType.INSERT_OR_UPDATE, key,
+							value);
+
+					return true;
+				} catch (PersistitException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+	}
+
+	@Override
+	public boolean insertOrUpdate(final Exchange exchange, final K key,
+			final V value) {
+		return transactional(exchange, new TransactionCallback<Boolean>() {
+			@Override
+			public Boolean inTransaction(Transaction txn) {
+				storeIndexed(exchange, key, value);
+
+				return true;
+			}
+		});
+	}
+
+	@Override
+	public boolean delete(final Exchange exchange, final K key) {
+		return transactional(exchange, new TransactionCallback<Boolean>() {
+			@Override
+			public Boolean inTransaction(Transaction txn) {
+				try {
+					exchange.clear();
+					encodeKey(exchange, key);
+					exchange.fetchAndRemove();
+
+					if (!exchange.getValue().isDefined()) {
+						return false;
+					}
+
+					updateIndexes(exchange, key, decodeValue(exchange),
+							null);
+					mutated(exchange, MutationType.DELETE, key, null);
+
+					return true;
+				} catch (PersistitException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Inserts or updates all of the given records (and their index entries)
+	 * in one transaction.
+	 */
+	@Override
+	public void storeAll(final Exchange exchange, final Map<K, V> records) {
+		transactional(exchange, new TransactionCallback<Void>() {
+			@Override
+			public Void inTransaction(Transaction txn) {
+				for (Map.Entry<K, V> entry : records.entrySet()) {
+					storeIndexed(exchange, entry.getKey(), entry.getValue());
+				}
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Returns a spec over an index tree selecting the entries whose attribute
+	 * equals the given value.
+	 */
+	public static TraversalSpec<Object, Object> indexSpec(Object value) {
+		return indexSpec(KeyFilter.simpleTerm(value));
+	}
+
+	/**
+	 * Returns a spec over an index tree selecting the entries whose attribute
+	 * is between low and high (inclusive). The range is a primary
+	 * KeyFilter, so the traversal seeks past non-matching entries.
+	 */
+	public static TraversalSpec<Object, Object> indexSpec(Object low,
+			Object high) {
+		return indexSpec(KeyFilter.rangeTerm(low, high, true, true));
+	}
+
+	/**
+	 * An entry is the attribute followed by the base key, which takes several
+	 * segments under a multi-segment key codec, so any depth from 2 on is
+	 * accepted.
+	 */
+	private static TraversalSpec<Object, Object> indexSpec(
+			KeyFilter.Term term) {
+		return new TraversalSpec<Object, Object>(Direction.ASC, new KeyFilter(
+				new KeyFilter.Term[] { term, KeyFilter.ALL }, 2,
+				Integer.MAX_VALUE), null);
+	}
+
+	/**
+	 * Returns the base records referenced by the index entries an indexSpec
+	 * selects, in index order. Base keys are collected batchSize at a time
+	 * and fetched with loadAll, so each batch is read from the base tree in
+	 * key order rather than in attribute order. Entries whose base record no
+	 * longer exists are skipped.
+	 */
+	public Traversal<K, V, Pair<K, V>> scan(Exchange baseExchange,
+			Exchange indexExchange, TraversalSpec<Object, Object> indexSpec,
+			int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive");
+		}
+
+		return new IndexScan(baseExchange, indexExchange,
+				Functional.rowCursor(indexExchange, indexSpec),
+				batchSize);
+	}
+
+	private void storeIndexed(Exchange exchange, K key, V value) {
+		try {
+			exchange.clear();
+			encodeKey(exchange, key);
+			encodeValue(exchange, value);
+			exchange.fetchAndStore();
+
+			V previous = exchange.getValue().isDefined() ? decodeValue(exchange)
+					: null;
+			updateIndexes(exchange, key, previous, value);
+			mutated(exchange, MutationType.INSERT_OR_UPDATE, key, value);
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Removes the entries for the previous value and adds those for the new
+	 * one (either may be null), leaving unchanged attributes alone.
+	 */
+	private void updateIndexes(Exchange exchange, K key, V previous, V value) {
+		Persistit db = exchange.getPersistitInstance();
+
+		for (Map.Entry<String, IndexExtractor<V>> index : indexes.entrySet()) {
+			IndexExtractor<V> extractor = index.getValue();
+			Object before = (previous == null) ? null : extractor
+					.extract(previous);
+			Object after = (value == null) ? null : extractor.extract(value);
+			if ((before == null) ? after == null : before.equals(after)) {
+				continue;
+			}
+
+			try {
+				Exchange indexExchange = db.getExchange(exchange.getVolume(),
+						index.getKey(), true);
+				try {
+					if (before != null) {
+						indexExchange.clear().append(before);
+						Functional.encodeKey(indexExchange.getKey(), key,
+								getKeyCodec());
+						indexExchange.remove();
+					}
+
+					if (after != null) {
+						indexExchange.clear().append(after);
+						Functional.encodeKey(indexExchange.getKey(), key,
+								getKeyCodec());
+						indexExchange.getValue().put(null);
+						indexExchange.store();
+					}
+				} finally {
+					db.releaseExchange(indexExchange);
+				}
+			} catch (PersistitException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/** Reads base keys from the index a batch at a time */
+	private class IndexScan implements Traversal<K, V, Pair<K, V>> {
+		private final Exchange baseExchange;
+		private final Key indexKey;
+		private final RowCursor cursor;
+		private final int batchSize;
+		private final List<K> keys;
+		private Iterator<Pair<K, V>> batch = Collections
+				.<Pair<K, V>> emptyList().iterator();
+		private Pair<K, V> nextItem;
+		private boolean exhausted;
+
+		public IndexScan(Exchange baseExchange, Exchange indexExchange,
+				RowCursor cursor, int batchSize) {
+			this.baseExchange = baseExchange;
+			this.indexKey = indexExchange.getKey();
+			this.cursor = cursor;
+			this.batchSize = batchSize;
+			this.keys = new ArrayList<K>(batchSize);
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (nextItem == null) {
+				if (batch.hasNext()) {
+					nextItem = batch.next();
+				} else if (!nextBatch()) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		private boolean nextBatch() {
+			keys.clear();
+			while (!exhausted && keys.size() < batchSize) {
+				if (cursor.step()) {
+					indexKey.reset();
+					indexKey.decode();
+					keys.add(Functional.decodeKey(indexKey, getKeyCodec()));
+				} else {
+					exhausted = true;
+				}
+			}
+
+			if (keys.isEmpty()) {
+				return false;
+			}
+
+			batch = loadAll(baseExchange, keys).iterator();
+
+			return true;
+		}
+
+		@Override
+		public Pair<K, V> next() {
+			if (!hasNext()) {
+				throw new IllegalStateException("next() called on empty iter");
+			}
+
+			Pair<K, V> item = nextItem;
+			nextItem = null;
+
+			return item;
+		}
+
+		@Override
+		public void traverseAll() {
+			while (hasNext()) {
+				next();
+			}
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -28,6 +28,15 @@ import com.persistit.logging.PersistitLogger;
 public class Shutdown {
 	/** Enables a shutdown hook that cleans up the db */
 	public static void enableShutdownHook(final Persistit db) {
+		enableShutdownHook(db, new ExchangeProvider[0]);
+	}
+
+	/**
+	 * Enables a shutdown hook that closes the given ExchangeProviders and then
+	 * cleans up the db
+	 */
+	public static void enableShutdownHook(final Persistit db,
+			final ExchangeProvider... providers) {
 		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
 			@Override
 			public void run() {
@@ -35,6 +44,10 @@ public class Shutdown {
 
 				log.log(PersistitLevel.INFO, "Shutdown requested, closing : "
 						+ db.toString());
+				for (ExchangeProvider provider : providers) {
+					provider.close();
+				}
+
 				try {
 					db.close();
 					log.log(PersistitLevel.INFO,
@@ -17,12 +17,28 @@
  */
 package com.g414.persistit;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.g414.persistit.Functional.KeyCodec;
+import com.g414.persistit.Functional.MutationType;
 import com.g414.persistit.Functional.Pair;
 import com.g414.persistit.Functional.PairImpl;
+import com.g414.persistit.Functional.ValueCodec;
 import com.persistit.Exchange;
+import com.persistit.Key;
 import com.persistit.Persistit;
 import com.persistit.Transaction;
+import com.persistit.Transaction.CommitPolicy;
 import com.persistit.exception.PersistitException;
+import com.persistit.exception.RollbackException;
 
 /**
  * Encapsulates mutations of Keys and Values using Persistit; eliminates much of
@@ -37,27 +53,212 @@ public class Template<K, V> {
 		public T run();
 	}
 
+	/**
+	 * Retry and durability settings for inTransaction. A policy also counts
+	 * the commits, retries and aborts of every transaction run with it, so a
+	 * policy shared by a service shows how much contention it sees. Only
+	 * rollbacks (RollbackException, possibly wrapped) are retried; the delay
+	 * before retry n is a random time between half and all of
+	 * min(maxBackoff, initialBackoff * 2^(n-1)) milliseconds.
+	 */
+	public static class RetryPolicy {
+		private static final Random jitter = new Random();
+
+		private final int maxAttempts;
+		private final long initialBackoffMillis;
+		private final long maxBackoffMillis;
+		private final CommitPolicy commitPolicy;
+		private final AtomicLong commits = new AtomicLong();
+		private final AtomicLong retries = new AtomicLong();
+		private final AtomicLong aborts = new AtomicLong();
+
+		public RetryPolicy(int maxAttempts, long initialBackoffMillis,
+				long maxBackoffMillis) {
+			this(maxAttempts, initialBackoffMillis, maxBackoffMillis, null);
+		}
+
+		/**
+		 * Creates a policy; a null commitPolicy uses the transaction's
+		 * default durability.
+		 */
+		public RetryPolicy(int maxAttempts, long initialBackoffMillis,
+				long maxBackoffMillis, CommitPolicy commitPolicy) {
+			if (maxAttempts < 1) {
+				throw new IllegalArgumentException(
+						"maxAttempts must be positive");
+			}
+
+			this.maxAttempts = maxAttempts;
+			this.initialBackoffMillis = initialBackoffMillis;
+			this.maxBackoffMillis = maxBackoffMillis;
+			this.commitPolicy = commitPolicy;
+		}
+
+		public int getMaxAttempts() {
+			return maxAttempts;
+		}
+
+		public CommitPolicy getCommitPolicy() {
+			return commitPolicy;
+		}
+
+		public long getCommitCount() {
+			return commits.get();
+		}
+
+		public long getRetryCount() {
+			return retries.get();
+		}
+
+		public long getAbortCount() {
+			return aborts.get();
+		}
+
+		public long getBackoffMillis(int attempt) {
+			long backoff = initialBackoffMillis;
+			for (int i = 1; i < attempt && backoff < maxBackoffMillis; i++) {
+				backoff *= 2;
+			}
+
+			backoff = Math.min(backoff, maxBackoffMillis);
+			if (backoff <= 1) {
+				return backoff;
+			}
+
+			long half = backoff / 2;
+			synchronized (jitter) {
+				return half + (long) (jitter.nextDouble() * (backoff - half));
+			}
+		}
+	}
+
+	/**
+	 * Notified of each successful write made through a template, inside the
+	 * write's transaction (one is begun if none is active), so anything the
+	 * listener stores commits or rolls back with the write. Inserts and
+	 * updates are reported as INSERT_OR_UPDATE with the new value; deletes
+	 * as DELETE with a null value. The listener must not use the template's
+	 * Exchange.
+	 */
+	public interface MutationListener<K, V> {
+		public void mutated(Exchange exchange, MutationType type, K key,
+				V value);
+	}
+
+	/** Retry policy for the transactions begun around single writes */
+	static final RetryPolicy WRITE_RETRY = new RetryPolicy(10, 1, 50);
+
+	private final KeyCodec<K> keyCodec;
+	private final ValueCodec<V> codec;
+	private final List<MutationListener<K, V>> listeners = new CopyOnWriteArrayList<MutationListener<K, V>>();
+
+	public Template() {
+		this(null, null);
+	}
+
+	/**
+	 * Creates a template that stores values with the given codec (null for
+	 * Persistit's default serialization). Traversals over the tree need a
+	 * TraversalSpec with the same codec.
+	 */
+	public Template(ValueCodec<V> codec) {
+		this(null, codec);
+	}
+
+	/**
+	 * Creates a template that also encodes keys with the given key codec
+	 * (null for a single Persistit segment), such as CompositeKey.CODEC.
+	 */
+	public Template(KeyCodec<K> keyCodec, ValueCodec<V> codec) {
+		this.keyCodec = keyCodec;
+		this.codec = codec;
+	}
+
+	public KeyCodec<K> getKeyCodec() {
+		return keyCodec;
+	}
+
+	public ValueCodec<V> getCodec() {
+		return codec;
+	}
+
+	public void addMutationListener(MutationListener<K, V> listener) {
+		listeners.add(listener);
+	}
+
+	public void removeMutationListener(MutationListener<K, V> listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Runs the callback in a transaction, committing if it returns normally
+	 * and rolling back (then rethrowing) if it throws.
+	 */
 	public <T> T inTransaction(Persistit database,
 			TransactionCallback<T> callback) throws Exception {
-		Transaction txn = null;
-		try {
-			txn = database.getTransaction();
+		return inTransaction(database, null, callback);
+	}
+
+	/**
+	 * Runs the callback in a transaction, committing with the policy's
+	 * durability if it returns normally. If the transaction is rolled back
+	 * because of a conflict, it is retried after a backoff, up to the policy's
+	 * maximum number of attempts; other exceptions are rethrown immediately.
+	 * When called inside another transaction there is no retry, since the
+	 * rollback belongs to the outer transaction. A null policy means a single
+	 * attempt with the default durability.
+	 */
+	public <T> T inTransaction(Persistit database, RetryPolicy policy,
+			TransactionCallback<T> callback) throws Exception {
+		Transaction txn = database.getTransaction();
+		int maxAttempts = (policy == null || txn.isActive()) ? 1 : policy
+				.getMaxAttempts();
+
+		for (int attempt = 1;; attempt++) {
+			Exception failure = null;
+			T result = null;
+
 			txn.begin();
+			try {
+				result = callback.inTransaction(txn);
 
-			return callback.inTransaction(txn);
-		} catch (Exception e) {
-			if (txn != null) {
+				if (policy != null && policy.getCommitPolicy() != null) {
+					txn.commit(policy.getCommitPolicy());
+				} else {
+					txn.commit();
+				}
+			} catch (Exception e) {
 				txn.rollback();
+				failure = e;
+			} finally {
 				txn.end();
-				txn = null;
 			}
 
-			throw e;
-		} finally {
-			if (txn != null) {
-				txn.commit();
-				txn.end();
-				txn = null;
+			if (failure == null) {
+				if (policy != null) {
+					policy.commits.incrementAndGet();
+				}
+
+				return result;
+			}
+
+			if (attempt >= maxAttempts || !isRollback(failure)) {
+				if (policy != null) {
+					policy.aborts.incrementAndGet();
+				}
+
+				throw failure;
+			}
+
+			policy.retries.incrementAndGet();
+
+			try {
+				Thread.sleep(policy.getBackoffMillis(attempt));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				policy.aborts.incrementAndGet();
+
+				throw failure;
 			}
 		}
 	}
@@ -74,40 +275,204 @@ public class Template<K, V> {
 	public Pair<K, V> load(Exchange exchange, K key) {
 		try {
 			exchange.clear();
-			exchange.getKey().append(key);
+			encodeKey(exchange, key);
 			exchange.fetch();
 
 			if (!exchange.getValue().isDefined()) {
 				return null;
 			}
 
-			return new PairImpl<K, V>((K) exchange.getKey().decode(),
-					(V) exchange.getValue().get());
+			return new PairImpl<K, V>(decodeKey(exchange),
+					decodeValue(exchange));
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Loads the given keys, returning one Pair per key in the caller's order
+	 * (null where the key is absent). The keys are fetched in Persistit key
+	 * order on the one Exchange, so neighbouring keys are found in the leaf
+	 * page the Exchange already has cached.
+	 */
+	public List<Pair<K, V>> loadAll(Exchange exchange, Collection<K> keys) {
+		List<K> keyList = new ArrayList<K>(keys);
+		byte[][] encoded = encodeKeys(exchange, keyList);
+		Pair<K, V>[] results = new Pair[keyList.size()];
+
+		try {
+			for (int index : sortedOrder(encoded)) {
+				toEncodedKey(exchange, encoded[index]);
+				exchange.fetch();
+
+				if (exchange.getValue().isDefined()) {
+					results[index] = new PairImpl<K, V>(keyList.get(index),
+							decodeValue(exchange));
+				}
+			}
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Inserts or updates all of the given records, writing them in Persistit
+	 * key order on the one Exchange for page locality.
+	 */
+	public void storeAll(final Exchange exchange, final Map<K, V> records) {
+		if (listeners.isEmpty()) {
+			storeAllRows(exchange, records);
+
+			return;
+		}
+
+		transactional(exchange, new TransactionCallback<Void>() {
+			@Override
+			public Void inTransaction(Transaction txn) {
+				storeAllRows(exchange, records);
+
+				for (Map.Entry<K, V> entry : records.entrySet()) {
+					mutated(exchange, MutationType.INSERT_OR_UPDATE,
+							entry.getKey(), entry.getValue());
+				}
+
+				return null;
+			}
+		});
+	}
+
+	private void storeAllRows(Exchange exchange, Map<K, V> records) {
+		List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>(
+				records.entrySet());
+		List<K> keyList = new ArrayList<K>(entries.size());
+		for (Map.Entry<K, V> entry : entries) {
+			keyList.add(entry.getKey());
+		}
+
+		byte[][] encoded = encodeKeys(exchange, keyList);
+
+		try {
+			for (int index : sortedOrder(encoded)) {
+				toEncodedKey(exchange, encoded[index]);
+				encodeValue(exchange, entries.get(index).getValue());
+				exchange.store();
+			}
 		} catch (PersistitException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	public boolean insert(Exchange exchange, K key, V value) {
-		if (recordExists(exchange, key)) {
-			return false;
+	/**
+	 * Stores the value only if the key is absent; returns false (leaving the
+	 * existing record in place) otherwise. Takes a single B-tree descent when
+	 * the key is absent. The write runs in a transaction (joining the active
+	 * one if any), so a rejected insert is undone before any other thread can
+	 * see it and two concurrent inserts of a key cannot both succeed. The
+	 * undone write still counts as a write of the key when Persistit checks
+	 * for conflicts with concurrent transactions.
+	 */
+	public boolean insert(final Exchange exchange, final K key,
+			final V value) {
+		return transactional(exchange, new TransactionCallback<Boolean>() {
+			@Override
+			public Boolean inTransaction(Transaction txn) {
+				if (!insertRow(exchange, key, value)) {
+					return false;
+				}
+
+				mutated(exchange, MutationType.INSERT_OR_UPDATE, key, value);
+
+				return true;
+			}
+		});
+	}
+
+	private boolean insertRow(Exchange exchange, K key, V value) {
+		try {
+			exchange.clear();
+			encodeKey(exchange, key);
+			encodeValue(exchange, value);
+			exchange.fetchAndStore();
+
+			if (exchange.getValue().isDefined()) {
+				// fetchAndStore() swapped the previous record into the Value,
+				// so storing it again puts the original record back
+				exchange.store();
+
+				return false;
+			}
+
+			return true;
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
 		}
+	}
+
+	/**
+	 * Stores the value only if the key is present; returns false (leaving the
+	 * key absent) otherwise. Takes a single B-tree descent when the key is
+	 * present; like insert, a rejected update is undone inside its
+	 * transaction.
+	 */
+	public boolean update(final Exchange exchange, final K key,
+			final V value) {
+		return transactional(exchange, new TransactionCallback<Boolean>() {
+			@Override
+			public Boolean inTransaction(Transaction txn) {
+				if (!updateRow(exchange, key, value)) {
+					return false;
+				}
 
-		return insertOrUpdate(exchange, key, value);
+				mutated(exchange, MutationType.INSERT_OR_UPDATE, key, value);
+
+				return true;
+			}
+		});
 	}
 
-	public boolean update(Exchange exchange, K key, V value) {
-		if (!recordExists(exchange, key)) {
-			return false;
+	private boolean updateRow(Exchange exchange, K key, V value) {
+		try {
+			exchange.clear();
+			encodeKey(exchange, key);
+			encodeValue(exchange, value);
+			exchange.fetchAndStore();
+
+			if (!exchange.getValue().isDefined()) {
+				exchange.remove();
+
+				return false;
+			}
+
+			return true;
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public boolean insertOrUpdate(final Exchange exchange, final K key,
+			final V value) {
+		if (listeners.isEmpty()) {
+			return insertOrUpdateRow(exchange, key, value);
 		}
 
-		return insertOrUpdate(exchange, key, value);
+		return transactional(exchange, new TransactionCallback<Boolean>() {
+			@Override
+			public Boolean inTransaction(Transaction txn) {
+				insertOrUpdateRow(exchange, key, value);
+				mutated(exchange, MutationType.INSERT_OR_UPDATE, key, value);
+
+				return true;
+			}
+		});
 	}
 
-	public boolean insertOrUpdate(Exchange exchange, K key, V value) {
+	private boolean insertOrUpdateRow(Exchange exchange, K key, V value) {
 		try {
-			exchange.getKey().to(key);
-			exchange.getValue().put(value);
+			exchange.clear();
+			encodeKey(exchange, key);
+			encodeValue(exchange, value);
 			exchange.store();
 
 			return true;
@@ -116,15 +481,32 @@ public class Template<K, V> {
 		}
 	}
 
-	public boolean delete(Exchange exchange, K key) {
-		if (!recordExists(exchange, key)) {
-			return false;
+	/** Removes the key if present, in a single B-tree descent */
+	public boolean delete(final Exchange exchange, final K key) {
+		if (listeners.isEmpty()) {
+			return deleteRow(exchange, key);
 		}
 
+		return transactional(exchange, new TransactionCallback<Boolean>() {
+			@Override
+			public Boolean inTransaction(Transaction txn) {
+				if (!deleteRow(exchange, key)) {
+					return false;
+				}
+
+				mutated(exchange, MutationType.DELETE, key, null);
+
+				return true;
+			}
+		});
+	}
+
+	private boolean deleteRow(Exchange exchange, K key) {
 		try {
-			exchange.getKey().to(key);
+			exchange.clear();
+			encodeKey(exchange, key);
 
-			return exchange.fetchAndRemove();
+			return exchange.remove();
 		} catch (PersistitException e) {
 			throw new RuntimeException(e);
 		}
@@ -133,11 +515,97 @@ public class Template<K, V> {
 	public boolean recordExists(Exchange exchange, K key) {
 		try {
 			exchange.clear();
-			exchange.getKey().to(key);
+			encodeKey(exchange, key);
 
 			return exchange.isValueDefined();
 		} catch (PersistitException e) {
 			throw new RuntimeException(e);
 		}
 	}
+
+	/** Reports a write to the listeners; called inside its transaction */
+	void mutated(Exchange exchange, MutationType type, K key, V value) {
+		for (MutationListener<K, V> listener : listeners) {
+			listener.mutated(exchange, type, key, value);
+		}
+	}
+
+	/**
+	 * Runs a write in a transaction, joining the active one if any. A
+	 * transaction begun here is retried when it loses a write-write conflict,
+	 * so a conditional write re-checks its condition against the winner.
+	 */
+	<T> T transactional(Exchange exchange, TransactionCallback<T> callback) {
+		try {
+			return inTransaction(exchange.getPersistitInstance(), WRITE_RETRY,
+					callback);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	void encodeKey(Exchange exchange, K key) {
+		Functional.encodeKey(exchange.getKey(), key, keyCodec);
+	}
+
+	K decodeKey(Exchange exchange) {
+		return Functional.decodeKey(exchange.getKey().reset(), keyCodec);
+	}
+
+	void encodeValue(Exchange exchange, V value) {
+		Functional.encodeValue(exchange.getValue(), value, codec);
+	}
+
+	V decodeValue(Exchange exchange) {
+		return Functional.decodeValue(exchange.getValue(), codec);
+	}
+
+	private static boolean isRollback(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof RollbackException) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private byte[][] encodeKeys(Exchange exchange, List<K> keys) {
+		byte[][] encoded = new byte[keys.size()][];
+		Key key = exchange.getKey();
+
+		for (int i = 0; i < encoded.length; i++) {
+			key.clear();
+			Functional.encodeKey(key, keys.get(i), keyCodec);
+			encoded[i] = Arrays.copyOf(key.getEncodedBytes(),
+					key.getEncodedSize());
+		}
+
+		return encoded;
+	}
+
+	private static void toEncodedKey(Exchange exchange, byte[] encoded) {
+		Key key = exchange.getKey();
+		System.arraycopy(encoded, 0, key.getEncodedBytes(), 0, encoded.length);
+		key.setEncodedSize(encoded.length);
+	}
+
+	private static Integer[] sortedOrder(final byte[][] encoded) {
+		Integer[] order = new Integer[encoded.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Functional.compareKeyBytes(encoded[a],
+						encoded[a].length, encoded[b]);
+			}
+		});
+
+		return order;
+	}
 }
@@ -0,0 +1,190 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.g414.persistit.Functional.Mapping;
+import com.g414.persistit.Functional.Mutation;
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.Reduction;
+import com.g414.persistit.Functional.TraversalSpec;
+import com.g414.persistit.Template.RetryPolicy;
+import com.g414.persistit.Template.TransactionCallback;
+import com.persistit.Exchange;
+import com.persistit.Transaction;
+
+/**
+ * Binds a Template to one (volume, tree) and an ExchangeProvider, so that
+ * Template operations and immediate Functional traversals take their
+ * Exchanges from the calling thread's pool instead of the caller managing
+ * getExchange()/releaseExchange() itself.
+ */
+public class TemplateSession<K, V> {
+	private final ExchangeProvider provider;
+	private final String volume;
+	private final String tree;
+	private final Template<K, V> template;
+
+	public TemplateSession(ExchangeProvider provider, String volume,
+			String tree, Template<K, V> template) {
+		this.provider = provider;
+		this.volume = volume;
+		this.tree = tree;
+		this.template = template;
+	}
+
+	public Template<K, V> getTemplate() {
+		return template;
+	}
+
+	public <T> T inTransaction(TransactionCallback<T> callback)
+			throws Exception {
+		return template.inTransaction(provider.getPersistit(), callback);
+	}
+
+	public <T> T inTransaction(RetryPolicy policy,
+			TransactionCallback<T> callback) throws Exception {
+		return template.inTransaction(provider.getPersistit(), policy,
+				callback);
+	}
+
+	public Pair<K, V> load(K key) {
+		Exchange exchange = provider.acquire(volume, tree);
+		try {
+			return template.load(exchange, key);
+		} finally {
+			provider.release(exchange);
+		}
+	}
+
+	public List<Pair<K, V>> loadAll(Collection<K> keys) {
+		Exchange exchange = provider.acquire(volume, tree);
+		try {
+			return template.loadAll(exchange, keys);
+		} finally {
+			provider.release(exchange);
+		}
+	}
+
+	public void storeAll(Map<K, V> records) {
+		Exchange exchange = provider.acquire(volume, tree);
+		try {
+			template.storeAll(exchange, records);
+		} finally {
+			provider.release(exchange);
+		}
+	}
+
+	public boolean insert(K key, V value) {
+		Exchange exchange = provider.acquire(volume, tree);
+		try {
+			return template.insert(exchange, key, value);
+		} finally {
+			provider.release(exchange);
+		}
+	}
+
+	public boolean update(K key, V value) {
+		Exchange exchange = provider.acquire(volume, tree);
+		try {
+			return template.update(exchange, key, value);
+		} finally {
+			provider.release(exchange);
+		}
+	}
+
+	public boolean insertOrUpdate(K key, V value) {
+		Exchange exchange = provider.acquire(volume, tree);
+		try {
+			return template.insertOrUpdate(exchange, key, value);
+		} finally {
+			provider.release(exchange);
+		}
+	}
+
+	public boolean delete(K key) {
+		Exchange exchange = provider.acquire(volume, tree);
+		try {
+			return template.delete(exchange, key);
+		} finally {
+			provider.release(exchange);
+		}
+	}
+
+	public boolean recordExists(K key) {
+		Exchange exchange = provider.acquire(volume, tree);
+		try {
+			return template.recordExists(exchange, key);
+		} finally {
+			provider.release(exchange);
+		}
+	}
+
+	/** Immediately executes the mapping for each row in the TraversalSpec */
+	public <T> void foreach(TraversalSpec<K, V> traversalSpec,
+			Mapping<K, V, T> mapping) {
+		Exchange exchange = provider.acquire(volume, tree);
+		try {
+			Functional.foreach(exchange, traversalSpec, mapping);
+		} finally {
+			provider.release(exchange);
+		}
+	}
+
+	/** Immediately executes a reduction over the TraversalSpec */
+	public <T> T reduce(TraversalSpec<K, V> traversalSpec,
+			Reduction<K, V, T> reduction, T initial) {
+		Exchange exchange = provider.acquire(volume, tree);
+		try {
+			return Functional.reduce(exchange, traversalSpec, reduction,
+					initial);
+		} finally {
+			provider.release(exchange);
+		}
+	}
+
+	/**
+	 * Immediately applies the mutation to each row in the TraversalSpec,
+	 * writing through this session's Template (see Functional#apply). Like
+	 * the other writes, it runs in one transaction (joining the active one if
+	 * any), so an exception from the mutation leaves no rows written; use the
+	 * chunked Functional#apply for ranges too large for one transaction.
+	 */
+	public void apply(final TraversalSpec<K, V> traversalSpec,
+			final Mapping<K, V, Mutation<K, V>> mutation) {
+		final Exchange source = provider.acquire(volume, tree);
+		final Exchange target = provider.acquire(volume, tree);
+		try {
+			template.transactional(source, new TransactionCallback<Void>() {
+				@Override
+				public Void inTransaction(Transaction txn) {
+					Functional.apply(source, template, traversalSpec,
+							mutation, target).traverseAll();
+
+					return null;
+				}
+			});
+		} finally {
+			provider.release(target);
+			provider.release(source);
+		}
+	}
+}
@@ -0,0 +1,392 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Statistics aggregated over every traversal that was given the same name
+ * (see Functional.TraversalSpec#withStats), registered with the platform
+ * MBean server as com.g414.persistit:type=Traversal,name="...".
+ * 
+ * Counters are kept in plain fields by each traversal and added in here
+ * every few thousand rows and when the traversal ends, so the per-row cost
+ * is a few increments. Phase timings (cursor step, key/value decoding,
+ * secondary Filter and Mapping) are taken on one row in every
+ * sampleInterval. A KeyFilter skips non-matching keys inside Persistit, so
+ * rowsRejectedByKeyFilter only counts the keys the traversal itself saw and
+ * rejected (at the end of the filter's range).
+ */
+public class TraversalStats implements TraversalStatsMBean {
+	public static final int DEFAULT_SAMPLE_INTERVAL = 64;
+
+	private static final int FLUSH_INTERVAL = 4096;
+
+	private static final ConcurrentMap<String, TraversalStats> registry = new ConcurrentHashMap<String, TraversalStats>();
+
+	private final String name;
+	private volatile int sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+	private final AtomicLong traversals = new AtomicLong();
+	private final AtomicLong rowsVisited = new AtomicLong();
+	private final AtomicLong rowsRejectedByKeyFilter = new AtomicLong();
+	private final AtomicLong rowsRejectedByFilter = new AtomicLong();
+	private final AtomicLong rowsEmitted = new AtomicLong();
+	private final AtomicLong bytesDecoded = new AtomicLong();
+	private final AtomicLong sampledRows = new AtomicLong();
+	private final AtomicLong cursorNanos = new AtomicLong();
+	private final AtomicLong decodeNanos = new AtomicLong();
+	private final AtomicLong filterNanos = new AtomicLong();
+	private final AtomicLong sampledMappings = new AtomicLong();
+	private final AtomicLong mappingNanos = new AtomicLong();
+
+	private TraversalStats(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Returns the statistics for the given traversal name, creating and
+	 * registering the MBean on first use.
+	 */
+	public static TraversalStats forName(String name) {
+		TraversalStats stats = registry.get(name);
+		if (stats != null) {
+			return stats;
+		}
+
+		TraversalStats created = new TraversalStats(name);
+		stats = registry.putIfAbsent(name, created);
+		if (stats != null) {
+			return stats;
+		}
+
+		try {
+			getMBeanServer().registerMBean(created, getObjectName(name));
+		} catch (InstanceAlreadyExistsException e) {
+			// registered by another copy of this class; keep counting here
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+
+		return created;
+	}
+
+	/** Forgets the statistics for the given name and unregisters its MBean */
+	public static void remove(String name) {
+		if (registry.remove(name) == null) {
+			return;
+		}
+
+		try {
+			getMBeanServer().unregisterMBean(getObjectName(name));
+		} catch (InstanceNotFoundException e) {
+			// never registered (see forName)
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static ObjectName getObjectName(String name) {
+		try {
+			return new ObjectName("com.g414.persistit:type=Traversal,name="
+					+ ObjectName.quote(name));
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static MBeanServer getMBeanServer() {
+		return ManagementFactory.getPlatformMBeanServer();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getTraversals() {
+		return traversals.get();
+	}
+
+	@Override
+	public long getRowsVisited() {
+		return rowsVisited.get();
+	}
+
+	@Override
+	public long getRowsRejectedByKeyFilter() {
+		return rowsRejectedByKeyFilter.get();
+	}
+
+	@Override
+	public long getRowsRejectedByFilter() {
+		return rowsRejectedByFilter.get();
+	}
+
+	/** Rows the traversals produced, after the filters, offset and limit */
+	@Override
+	public long getRowsEmitted() {
+		return rowsEmitted.get();
+	}
+
+	@Override
+	public long getBytesDecoded() {
+		return bytesDecoded.get();
+	}
+
+	@Override
+	public int getSampleInterval() {
+		return sampleInterval;
+	}
+
+	/** Takes effect for traversals started after the change */
+	@Override
+	public void setSampleInterval(int sampleInterval) {
+		if (sampleInterval < 1) {
+			throw new IllegalArgumentException(
+					"sampleInterval must be positive");
+		}
+
+		this.sampleInterval = sampleInterval;
+	}
+
+	@Override
+	public long getSampledRows() {
+		return sampledRows.get();
+	}
+
+	@Override
+	public double getCursorNanosPerRow() {
+		return mean(cursorNanos, sampledRows);
+	}
+
+	@Override
+	public double getDecodeNanosPerRow() {
+		return mean(decodeNanos, sampledRows);
+	}
+
+	@Override
+	public double getFilterNanosPerRow() {
+		return mean(filterNanos, sampledRows);
+	}
+
+	@Override
+	public double getMappingNanosPerRow() {
+		return mean(mappingNanos, sampledMappings);
+	}
+
+	@Override
+	public void reset() {
+		traversals.set(0);
+		rowsVisited.set(0);
+		rowsRejectedByKeyFilter.set(0);
+		rowsRejectedByFilter.set(0);
+		rowsEmitted.set(0);
+		bytesDecoded.set(0);
+		sampledRows.set(0);
+		cursorNanos.set(0);
+		decodeNanos.set(0);
+		filterNanos.set(0);
+		sampledMappings.set(0);
+		mappingNanos.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("TraversalStats{name=%s, traversals=%d, "
+				+ "rowsVisited=%d, rowsRejectedByKeyFilter=%d, "
+				+ "rowsRejectedByFilter=%d, rowsEmitted=%d, bytesDecoded=%d, "
+				+ "cursorNanosPerRow=%.1f, decodeNanosPerRow=%.1f, "
+				+ "filterNanosPerRow=%.1f, mappingNanosPerRow=%.1f}", name,
+				getTraversals(), getRowsVisited(),
+				getRowsRejectedByKeyFilter(), getRowsRejectedByFilter(),
+				getRowsEmitted(), getBytesDecoded(), getCursorNanosPerRow(),
+				getDecodeNanosPerRow(), getFilterNanosPerRow(),
+				getMappingNanosPerRow());
+	}
+
+	private static double mean(AtomicLong nanos, AtomicLong samples) {
+		long count = samples.get();
+
+		return (count == 0) ? 0.0 : nanos.get() / (double) count;
+	}
+
+	/** Returns a recorder for one traversal, owned by a single thread */
+	Recorder newRecorder() {
+		return new Recorder(this, sampleInterval);
+	}
+
+	/**
+	 * Collects the counters of a single traversal in plain fields and adds
+	 * them to the shared statistics in batches. The begin*() methods return
+	 * a start time (or 0 when the current row is not sampled) to be passed to
+	 * the matching end*() method.
+	 */
+	static class Recorder {
+		private final TraversalStats stats;
+		private final int sampleInterval;
+		private int untilSample = 1;
+		private int untilMappingSample = 1;
+		private boolean sampling;
+		private boolean counted;
+		private long rowsVisited;
+		private long rowsRejectedByKeyFilter;
+		private long rowsRejectedByFilter;
+		private long rowsEmitted;
+		private long bytesDecoded;
+		private long sampledRows;
+		private long cursorNanos;
+		private long decodeNanos;
+		private long filterNanos;
+		private long sampledMappings;
+		private long mappingNanos;
+		private long filterDecodeMark;
+
+		private Recorder(TraversalStats stats, int sampleInterval) {
+			this.stats = stats;
+			this.sampleInterval = sampleInterval;
+		}
+
+		public long beginStep() {
+			if (--untilSample == 0) {
+				untilSample = sampleInterval;
+				sampling = true;
+
+				return System.nanoTime();
+			}
+
+			sampling = false;
+
+			return 0L;
+		}
+
+		/** Ends a cursor step that found a row within the traversal */
+		public void endStep(long start) {
+			rowsVisited += 1;
+
+			if (sampling) {
+				sampledRows += 1;
+				cursorNanos += System.nanoTime() - start;
+			}
+
+			if (rowsVisited % FLUSH_INTERVAL == 0) {
+				flush();
+			}
+		}
+
+		public void rejectedByKeyFilter() {
+			rowsRejectedByKeyFilter += 1;
+		}
+
+		public long beginFilter() {
+			if (!sampling) {
+				return 0L;
+			}
+
+			filterDecodeMark = decodeNanos;
+
+			return System.nanoTime();
+		}
+
+		public void endFilter(long start, boolean accepted) {
+			if (!accepted) {
+				rowsRejectedByFilter += 1;
+			}
+
+			if (sampling) {
+				// decoding done by the Filter is accounted as decoding
+				filterNanos += System.nanoTime() - start
+						- (decodeNanos - filterDecodeMark);
+			}
+		}
+
+		/** Counts a row the traversal produced */
+		public void emitted() {
+			rowsEmitted += 1;
+		}
+
+		public long beginDecode() {
+			return sampling ? System.nanoTime() : 0L;
+		}
+
+		public void endDecode(long start, int bytes) {
+			bytesDecoded += bytes;
+
+			if (sampling) {
+				decodeNanos += System.nanoTime() - start;
+			}
+		}
+
+		public long beginMapping() {
+			if (--untilMappingSample == 0) {
+				untilMappingSample = sampleInterval;
+
+				return System.nanoTime();
+			}
+
+			return 0L;
+		}
+
+		public void endMapping(long start) {
+			if (start != 0L) {
+				sampledMappings += 1;
+				mappingNanos += System.nanoTime() - start;
+			}
+		}
+
+		/** Adds everything recorded since the last flush to the stats */
+		public void flush() {
+			if (!counted) {
+				counted = true;
+				stats.traversals.incrementAndGet();
+			}
+
+			stats.rowsVisited.addAndGet(rowsVisited);
+			stats.rowsRejectedByKeyFilter.addAndGet(rowsRejectedByKeyFilter);
+			stats.rowsRejectedByFilter.addAndGet(rowsRejectedByFilter);
+			stats.rowsEmitted.addAndGet(rowsEmitted);
+			stats.bytesDecoded.addAndGet(bytesDecoded);
+			stats.sampledRows.addAndGet(sampledRows);
+			stats.cursorNanos.addAndGet(cursorNanos);
+			stats.decodeNanos.addAndGet(decodeNanos);
+			stats.filterNanos.addAndGet(filterNanos);
+			stats.sampledMappings.addAndGet(sampledMappings);
+			stats.mappingNanos.addAndGet(mappingNanos);
+
+			rowsVisited = 0;
+			rowsRejectedByKeyFilter = 0;
+			rowsRejectedByFilter = 0;
+			rowsEmitted = 0;
+			bytesDecoded = 0;
+			sampledRows = 0;
+			cursorNanos = 0;
+			decodeNanos = 0;
+			filterNanos = 0;
+			sampledMappings = 0;
+			mappingNanos = 0;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+/**
+ * JMX view of the statistics collected for one named traversal (see
+ * TraversalStats). Per-row timings are means over the sampled rows.
+ */
+public interface TraversalStatsMBean {
+	public String getName();
+
+	public long getTraversals();
+
+	public long getRowsVisited();
+
+	public long getRowsRejectedByKeyFilter();
+
+	public long getRowsRejectedByFilter();
+
+	public long getRowsEmitted();
+
+	public long getBytesDecoded();
+
+	public int getSampleInterval();
+
+	public void setSampleInterval(int sampleInterval);
+
+	public long getSampledRows();
+
+	public double getCursorNanosPerRow();
+
+	public double getDecodeNanosPerRow();
+
+	public double getFilterNanosPerRow();
+
+	public double getMappingNanosPerRow();
+
+	public void reset();
+}
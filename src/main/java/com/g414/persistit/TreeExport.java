@@ -0,0 +1,305 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import com.g414.persistit.Functional.RowCursor;
+import com.g414.persistit.Functional.TraversalSpec;
+import com.persistit.Exchange;
+import com.persistit.Key;
+import com.persistit.Value;
+import com.persistit.exception.PersistitException;
+import com.persistit.policy.SplitPolicy;
+
+/**
+ * Copies the raw encoded keys and values of a tree to and from a file,
+ * without decoding them, so a tree can be moved between environments at
+ * close to disk speed.
+ * 
+ * The file holds a header (magic number and version), one record per row
+ * (key length, value length, key bytes, value bytes; lengths are big-endian
+ * ints), an end marker, the row count and a CRC32 of everything before it.
+ * Rows are written in traversal order.
+ */
+public class TreeExport {
+	private static final int MAGIC = 0x50535458;
+	private static final int VERSION = 1;
+	private static final int END_OF_RECORDS = -1;
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * Writes every row selected by the TraversalSpec (which must not be
+	 * keys-only; null selects the whole tree) to the given file, replacing
+	 * it; returns the number of rows written. The traversal is always deep,
+	 * so rows under multi-segment keys are exported, and keys without a value
+	 * are skipped. A secondary Filter decodes whatever it looks at.
+	 */
+	public static <K, V> long export(Exchange exchange,
+			TraversalSpec<K, V> traversalSpec, File file) {
+		RowCursor cursor = Functional.rowCursor(exchange,
+				(traversalSpec == null) ? new TraversalSpec<K, V>()
+						.withDeep(true) : traversalSpec.withDeep(true));
+		Key key = exchange.getKey();
+		Value value = exchange.getValue();
+
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				Output output = new Output(out.getChannel());
+				output.putInt(MAGIC);
+				output.putInt(VERSION);
+
+				long rows = 0;
+				while (cursor.step()) {
+					if (!value.isDefined()) {
+						continue;
+					}
+
+					output.putInt(key.getEncodedSize());
+					output.putInt(value.getEncodedSize());
+					output.put(key.getEncodedBytes(), 0, key.getEncodedSize());
+					output.put(value.getEncodedBytes(), 0,
+							value.getEncodedSize());
+					rows += 1;
+				}
+
+				output.putInt(END_OF_RECORDS);
+				output.putLong(rows);
+				output.putLong(output.getChecksum());
+				output.flush();
+
+				return rows;
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Stores every row of an exported file through the given Exchange,
+	 * packing pages for the key-ordered inserts; returns the number of rows
+	 * stored. The checksum can only be verified at the end of the file, so
+	 * run the import inside a transaction if a corrupt file must leave no
+	 * rows behind.
+	 */
+	public static long importFrom(Exchange exchange, File file) {
+		Key key = exchange.getKey();
+		Value value = exchange.getValue();
+
+		exchange.setSplitPolicy(SplitPolicy.PACK_BIAS);
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				Input input = new Input(in.getChannel());
+				if (input.getInt() != MAGIC) {
+					throw new IOException(file + " is not a tree export");
+				}
+
+				int version = input.getInt();
+				if (version != VERSION) {
+					throw new IOException("unsupported export version "
+							+ version + " in " + file);
+				}
+
+				long rows = 0;
+				for (;;) {
+					int keyLength = input.getInt();
+					if (keyLength == END_OF_RECORDS) {
+						break;
+					}
+
+					int valueLength = input.getInt();
+					if (keyLength < 0 || keyLength > key.getMaximumSize()
+							|| valueLength < 0
+							|| valueLength > value.getMaximumSize()) {
+						throw new IOException("corrupt record " + rows
+								+ " in " + file);
+					}
+
+					input.get(key.getEncodedBytes(), 0, keyLength);
+					key.setEncodedSize(keyLength);
+
+					value.ensureFit(valueLength);
+					input.get(value.getEncodedBytes(), 0, valueLength);
+					value.setEncodedSize(valueLength);
+
+					exchange.store();
+					rows += 1;
+				}
+
+				long expectedRows = input.getLong();
+				long checksum = input.getChecksum();
+				if (input.getLong() != checksum || expectedRows != rows) {
+					throw new IOException("checksum mismatch in " + file);
+				}
+
+				return rows;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		} finally {
+			exchange.setSplitPolicy(exchange.getPersistitInstance()
+					.getDefaultSplitPolicy());
+		}
+	}
+
+	/**
+	 * Buffers output in a direct buffer (so the channel does not copy it
+	 * again) and checksums everything written.
+	 */
+	private static class Output {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private final CRC32 checksum = new CRC32();
+		private final byte[] scratch = new byte[8];
+
+		public Output(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		public void putInt(int value) throws IOException {
+			for (int i = 0; i < 4; i++) {
+				scratch[i] = (byte) (value >>> (24 - 8 * i));
+			}
+
+			put(scratch, 0, 4);
+		}
+
+		public void putLong(long value) throws IOException {
+			for (int i = 0; i < 8; i++) {
+				scratch[i] = (byte) (value >>> (56 - 8 * i));
+			}
+
+			put(scratch, 0, 8);
+		}
+
+		public void put(byte[] bytes, int offset, int length)
+				throws IOException {
+			checksum.update(bytes, offset, length);
+
+			while (length > 0) {
+				if (!buffer.hasRemaining()) {
+					flush();
+				}
+
+				int count = Math.min(length, buffer.remaining());
+				buffer.put(bytes, offset, count);
+				offset += count;
+				length -= count;
+			}
+		}
+
+		public long getChecksum() {
+			return checksum.getValue();
+		}
+
+		public void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+
+	/** Reads through a direct buffer and checksums everything read */
+	private static class Input {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private final CRC32 checksum = new CRC32();
+		private final byte[] scratch = new byte[8];
+
+		public Input(FileChannel channel) {
+			this.channel = channel;
+			this.buffer.flip();
+		}
+
+		public int getInt() throws IOException {
+			get(scratch, 0, 4);
+
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				value = (value << 8) | (scratch[i] & 0xFF);
+			}
+
+			return value;
+		}
+
+		public long getLong() throws IOException {
+			get(scratch, 0, 8);
+
+			long value = 0;
+			for (int i = 0; i < 8; i++) {
+				value = (value << 8) | (scratch[i] & 0xFF);
+			}
+
+			return value;
+		}
+
+		public void get(byte[] bytes, int offset, int length)
+				throws IOException {
+			int start = offset;
+			int remaining = length;
+
+			while (remaining > 0) {
+				if (!buffer.hasRemaining()) {
+					fill();
+				}
+
+				int count = Math.min(remaining, buffer.remaining());
+				buffer.get(bytes, offset, count);
+				offset += count;
+				remaining -= count;
+			}
+
+			checksum.update(bytes, start, length);
+		}
+
+		public long getChecksum() {
+			return checksum.getValue();
+		}
+
+		private void fill() throws IOException {
+			buffer.clear();
+
+			int count;
+			do {
+				count = channel.read(buffer);
+			} while (count == 0);
+
+			buffer.flip();
+			if (count < 0) {
+				throw new EOFException("export file is truncated");
+			}
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+
+import com.g414.persistit.Functional.Direction;
+import com.persistit.Persistit;
+
+/**
+ * Base class for the "slow" benchmark group: runs against a Persistit volume
+ * in a fresh temp directory so that runs do not interfere with each other or
+ * with the functional tests. Benchmarks are parameterized with system
+ * properties (bench.rows, bench.valueSize, bench.selectivity, bench.direction
+ * and bench.buffers); when bench.output is set, each result is also appended
+ * to that file as one JSON object per line.
+ */
+public class BenchmarkTestBase {
+	protected static String vol = "bench";
+	protected static String tree = "bench";
+	protected Persistit db = null;
+	private File dataDir = null;
+
+	@BeforeMethod(alwaysRun = true)
+	public void init() throws Exception {
+		dataDir = File.createTempFile("persistit-bench", "");
+		dataDir.delete();
+		dataDir.mkdirs();
+
+		Properties props = new Properties();
+		props.setProperty("datapath", dataDir.getAbsolutePath());
+		props.setProperty("buffer.count.16384",
+				Integer.toString(getBufferCount()));
+		props.setProperty("logfile", "${datapath}/bench.log");
+		props.setProperty("volume.1", "${datapath}/" + vol
+				+ ",create,pageSize:16384,initialPages:100,"
+				+ "extensionPages:1000,maximumPages:10000000");
+		props.setProperty("journalpath", "${datapath}/bench_journal");
+
+		db = new Persistit();
+		db.initialize(props);
+	}
+
+	@AfterMethod(alwaysRun = true)
+	public void finish() throws Exception {
+		if (db != null) {
+			db.close();
+			db = null;
+		}
+
+		delete(dataDir);
+	}
+
+	protected static int getIntProperty(String name, int defaultValue) {
+		return Integer.parseInt(System.getProperty(name,
+				Integer.toString(defaultValue)));
+	}
+
+	protected static int getBufferCount() {
+		return getIntProperty("bench.buffers", 4096);
+	}
+
+	/** Filter selectivities to run, in percent (bench.selectivity) */
+	protected static List<Integer> getSelectivities() {
+		List<Integer> selectivities = new ArrayList<Integer>();
+		for (String percent : System
+				.getProperty("bench.selectivity", "1,10,100").split(",")) {
+			selectivities.add(Integer.parseInt(percent.trim()));
+		}
+
+		return selectivities;
+	}
+
+	/** Directions to run (bench.direction: ASC, DESC or both by default) */
+	protected static List<Direction> getDirections() {
+		List<Direction> directions = new ArrayList<Direction>();
+		for (String direction : System.getProperty("bench.direction",
+				"ASC,DESC").split(",")) {
+			directions.add(Direction.valueOf(direction.trim()));
+		}
+
+		return directions;
+	}
+
+	/** Runs the given task and returns the elapsed nanoseconds */
+	protected static long time(Runnable task) {
+		long start = System.nanoTime();
+		task.run();
+
+		return System.nanoTime() - start;
+	}
+
+	protected void report(String name, long rows, long nanos) {
+		report(name, new LinkedHashMap<String, Object>(), rows, nanos);
+	}
+
+	/**
+	 * Prints a result and, if bench.output is set, appends it as JSON along
+	 * with the given benchmark parameters (numbers or strings).
+	 */
+	protected void report(String name, Map<String, Object> params, long rows,
+			long nanos) {
+		System.out.println(String.format(
+				"%-48s rows=%-10d ms=%-8d rows/s=%.0f", name, rows,
+				nanos / 1000000L, rows / (nanos / 1.0e9)));
+
+		String output = System.getProperty("bench.output");
+		if (output == null || output.length() == 0) {
+			return;
+		}
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("class", getClass().getSimpleName());
+		result.put("benchmark", name);
+		result.putAll(params);
+		result.put("buffers", getBufferCount());
+		result.put("rows", rows);
+		result.put("nanos", nanos);
+		result.put("rowsPerSecond", Math.round(rows / (nanos / 1.0e9)));
+		result.put("timestamp", System.currentTimeMillis());
+
+		writeResult(new File(output), toJson(result));
+	}
+
+	private static String toJson(Map<String, Object> fields) {
+		StringBuilder json = new StringBuilder("{");
+		for (Map.Entry<String, Object> field : fields.entrySet()) {
+			if (json.length() > 1) {
+				json.append(',');
+			}
+
+			json.append(quote(field.getKey())).append(':');
+
+			Object value = field.getValue();
+			if (value instanceof Number) {
+				json.append(value);
+			} else {
+				json.append(quote(String.valueOf(value)));
+			}
+		}
+
+		return json.append('}').toString();
+	}
+
+	private static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	private static synchronized void writeResult(File output, String json) {
+		output.getAbsoluteFile().getParentFile().mkdirs();
+
+		try {
+			Writer writer = new FileWriter(output, true);
+			try {
+				writer.write(json);
+				writer.write('\n');
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void delete(File file) {
+		if (file == null) {
+			return;
+		}
+
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+}
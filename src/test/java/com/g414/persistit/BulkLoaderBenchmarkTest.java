@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.Functional.ChunkSpec;
+import com.g414.persistit.Template.TransactionCallback;
+import com.persistit.Exchange;
+import com.persistit.Transaction;
+
+/**
+ * Compares loading key-ordered rows with Template#insert in one transaction
+ * (the pattern in FunctionalTestBase) against BulkLoader, with and without
+ * transactions.
+ */
+@Test(groups = "slow")
+public class BulkLoaderBenchmarkTest extends BenchmarkTestBase {
+	public void testLoad() throws Exception {
+		final int rows = getIntProperty("bench.rows", 1000000);
+		final int valueSize = getIntProperty("bench.valueSize", 128);
+		final Template<Integer, String> template = new Template<Integer, String>();
+
+		StringBuilder padding = new StringBuilder();
+		while (padding.length() < valueSize) {
+			padding.append("0123456789abcdef");
+		}
+		final String value = padding.substring(0, valueSize);
+
+		Map<String, Object> params = new LinkedHashMap<String, Object>();
+		params.put("valueSize", valueSize);
+
+		for (int round = 0; round < 2; round++) {
+			final Exchange inserted = db.getExchange(vol, "insert" + round,
+					true);
+			long insertNanos = time(new Runnable() {
+				public void run() {
+					try {
+						template.inTransaction(db,
+								new TransactionCallback<Void>() {
+									@Override
+									public Void inTransaction(Transaction txn) {
+										for (int i = 0; i < rows; i++) {
+											template.insert(inserted, i, value);
+										}
+
+										return null;
+									}
+								});
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+
+			long chunkedNanos = load("chunked" + round, rows, value, true);
+			long directNanos = load("direct" + round, rows, value, false);
+
+			if (round > 0) {
+				report("Template.insert (one transaction)", params, rows,
+						insertNanos);
+				report("BulkLoader (10000-row chunks)", params, rows,
+						chunkedNanos);
+				report("BulkLoader (non-transactional)", params, rows,
+						directNanos);
+			}
+
+			db.releaseExchange(inserted);
+		}
+	}
+
+	private long load(String treeName, final int rows, final String value,
+			final boolean transactional) throws Exception {
+		final Exchange exchange = db.getExchange(vol, treeName, true);
+
+		long nanos = time(new Runnable() {
+			public void run() {
+				BulkLoader<Integer, String> loader = new BulkLoader<Integer, String>(
+						exchange, new ChunkSpec(10000), transactional, null,
+						null);
+				for (int i = 0; i < rows; i++) {
+					loader.add(i, value);
+				}
+
+				Assert.assertEquals(rows, loader.finish());
+			}
+		});
+
+		db.releaseExchange(exchange);
+
+		return nanos;
+	}
+}
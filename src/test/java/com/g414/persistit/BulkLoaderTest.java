@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.BulkLoader.RejectHandler;
+import com.g414.persistit.Functional.ChunkSpec;
+import com.g414.persistit.Functional.Direction;
+import com.g414.persistit.Functional.Mapping;
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.ProgressListener;
+import com.g414.persistit.Functional.TraversalSpec;
+import com.g414.persistit.Functional.ValueCodec;
+import com.persistit.Exchange;
+
+@Test
+public class BulkLoaderTest extends FunctionalTestBase {
+	/**
+	 * Tests BulkLoader with chunked commits: out-of-order rows are diverted
+	 * to the RejectHandler and progress is reported once per chunk.
+	 */
+	public void testChunkedLoad() throws Exception {
+		Exchange exchange = db.getExchange(vol, tree + "Bulk", true);
+		exchange.removeAll();
+		final List<String> rejected = new ArrayList<String>();
+		final AtomicLong reports = new AtomicLong();
+
+		BulkLoader<String, Integer> loader = new BulkLoader<String, Integer>(
+				exchange, new ChunkSpec(100), true,
+				new RejectHandler<String, Integer>() {
+					@Override
+					public void rejected(String key, Integer value) {
+						rejected.add(key);
+					}
+				}, new ProgressListener() {
+					@Override
+					public void progress(long rows, long mutations,
+							long bytes, long elapsedNanos) {
+						Assert.assertEquals(reports.incrementAndGet() * 100,
+								mutations);
+					}
+				});
+
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertTrue(loader.add(getKey(i), i));
+
+			if (i % 250 == 0) {
+				Assert.assertFalse(loader.add(getKey(i), i));
+				Assert.assertFalse(loader.add(getKey(0), 0));
+			}
+		}
+
+		Assert.assertEquals(1000, loader.finish());
+		Assert.assertEquals(10, reports.get());
+		Assert.assertEquals(8, loader.getRowsRejected());
+		Assert.assertEquals(8, rejected.size());
+
+		AtomicLong counter = new AtomicLong();
+		Functional.foreach(exchange, getFullTraversal(Direction.ASC),
+				getIdentityMapping(counter, true, true));
+		Assert.assertEquals(1000, counter.get());
+	}
+
+	/**
+	 * Tests that an out-of-order row without a RejectHandler fails the add,
+	 * and that abort() rolls back the open chunk but keeps committed ones.
+	 */
+	public void testOutOfOrderAndAbort() throws Exception {
+		Exchange exchange = db.getExchange(vol, tree + "Bulk", true);
+		exchange.removeAll();
+		BulkLoader<String, Integer> loader = new BulkLoader<String, Integer>(
+				exchange, new ChunkSpec(100));
+
+		for (int i = 0; i < 150; i++) {
+			loader.add(getKey(i), i);
+		}
+
+		try {
+			loader.add(getKey(10), 10);
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+			// out of order
+		}
+
+		loader.abort();
+		Assert.assertEquals(100, loader.getRowsLoaded());
+
+		AtomicLong counter = new AtomicLong();
+		Functional.foreach(exchange, getFullTraversal(Direction.ASC),
+				getIdentityMapping(counter, true, true));
+		Assert.assertEquals(100, counter.get());
+	}
+
+	/**
+	 * Tests that rows loaded with key and value codecs read back through a
+	 * Template and a traversal configured with the same codecs.
+	 */
+	public void testLoadWithCodecs() throws Exception {
+		Exchange exchange = db.getExchange(vol, tree + "Bulk", true);
+		exchange.removeAll();
+
+		// stores the string's UTF-8 bytes reversed
+		ValueCodec<String> codec = new ValueCodec<String>() {
+			@Override
+			public byte[] encode(String value) {
+				return new StringBuilder(value).reverse().toString()
+						.getBytes(Charset.forName("UTF-8"));
+			}
+
+			@Override
+			public String decode(byte[] encoded) {
+				return new StringBuilder(new String(encoded,
+						Charset.forName("UTF-8"))).reverse().toString();
+			}
+		};
+
+		BulkLoader<CompositeKey, String> loader = new BulkLoader<CompositeKey, String>(
+				exchange, new ChunkSpec(10), CompositeKey.CODEC, codec);
+		for (long day = 0; day < 5; day++) {
+			for (int id = 0; id < 5; id++) {
+				Assert.assertTrue(loader.add(CompositeKey.of("t", day, id),
+						day + "/" + id));
+			}
+		}
+		Assert.assertEquals(25, loader.finish());
+
+		Template<CompositeKey, String> template = new Template<CompositeKey, String>(
+				CompositeKey.CODEC, codec);
+		Assert.assertEquals("3/4", template.load(exchange,
+				CompositeKey.of("t", 3L, 4)).getValue());
+
+		final List<String> values = new ArrayList<String>();
+		Functional.foreach(exchange, new TraversalSpec<CompositeKey, String>()
+				.withKeyCodec(CompositeKey.CODEC).withCodec(codec)
+				.withDeep(true).withPrefix(CompositeKey.of("t", 2L)),
+				new Mapping<CompositeKey, String, Void>() {
+					@Override
+					public Void map(Pair<CompositeKey, String> row) {
+						Assert.assertEquals(row.getKey().get(1) + "/"
+								+ row.getKey().get(2), row.getValue());
+						values.add(row.getValue());
+
+						return null;
+					}
+				});
+		Assert.assertEquals(Arrays.asList("2/0", "2/1", "2/2", "2/3", "2/4"),
+				values);
+	}
+}
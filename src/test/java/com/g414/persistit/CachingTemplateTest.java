@@ -0,0 +1,284 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Template.TransactionCallback;
+import com.persistit.Exchange;
+import com.persistit.Transaction;
+
+@Test
+public class CachingTemplateTest extends FunctionalTestBase {
+	/**
+	 * Tests CachingTemplate hits, misses, evictions and invalidation by
+	 * writes made through the template.
+	 */
+	public void testLoadThroughCache() throws Exception {
+		final Exchange exchange = getExchange(db, true);
+		final CachingTemplate<String, Integer> template = new CachingTemplate<String, Integer>(
+				2);
+
+		Assert.assertEquals(1, (int) template.load(exchange, getKey(1))
+				.getValue());
+		Assert.assertEquals(1, (int) template.load(exchange, getKey(1))
+				.getValue());
+		Assert.assertEquals(1, template.getMissCount());
+		Assert.assertEquals(1, template.getHitCount());
+
+		template.insertOrUpdate(exchange, getKey(1), -1);
+		Assert.assertEquals(-1, (int) template.load(exchange, getKey(1))
+				.getValue());
+		Assert.assertEquals(2, template.getMissCount());
+
+		template.load(exchange, getKey(2));
+		template.load(exchange, getKey(3));
+		Assert.assertEquals(2, template.getSize());
+		Assert.assertEquals(1, template.getEvictionCount());
+
+		List<Pair<String, Integer>> loaded = template.loadAll(exchange,
+				Arrays.asList(getKey(3), getKey(4), getKey(2000)));
+		Assert.assertEquals(3, (int) loaded.get(0).getValue());
+		Assert.assertEquals(4, (int) loaded.get(1).getValue());
+		Assert.assertNull(loaded.get(2));
+		Assert.assertEquals(2, template.getHitCount());
+
+		Assert.assertTrue(template.delete(exchange, getKey(4)));
+		Assert.assertNull(template.load(exchange, getKey(4)));
+
+		db.releaseExchange(exchange);
+	}
+
+	/**
+	 * Tests that values written inside a transaction that rolls back are
+	 * never served from the cache.
+	 */
+	public void testRollbackIsNotCached() throws Exception {
+		final Exchange exchange = getExchange(db, true);
+		final CachingTemplate<String, Integer> template = new CachingTemplate<String, Integer>(
+				100);
+
+		template.load(exchange, getKey(5));
+
+		try {
+			template.inTransaction(db, new TransactionCallback<Void>() {
+				@Override
+				public Void inTransaction(Transaction txn) {
+					template.update(exchange, getKey(5), -5);
+					Assert.assertEquals(-5, (int) template.load(exchange,
+							getKey(5)).getValue());
+
+					throw new IllegalStateException();
+				}
+			});
+			Assert.fail();
+		} catch (IllegalStateException expected) {
+			// rolled back
+		}
+
+		Assert.assertEquals(5, (int) template.load(exchange, getKey(5))
+				.getValue());
+
+		db.releaseExchange(exchange);
+	}
+
+	/**
+	 * Tests a write inside a transaction begun directly on the Transaction
+	 * rather than through inTransaction: another thread loading the key
+	 * during the transaction must not leave the old value cached after the
+	 * commit, and the key becomes cacheable again afterwards.
+	 */
+	public void testWriteInOtherTransaction() throws Exception {
+		final Exchange exchange = getExchange(db, true);
+		final CachingTemplate<String, Integer> template = new CachingTemplate<String, Integer>(
+				100);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Callable<Integer> otherLoad = new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				Exchange other = getExchange(db, false);
+				try {
+					return template.load(other, getKey(5)).getValue();
+				} finally {
+					db.releaseExchange(other);
+				}
+			}
+		};
+
+		try {
+			Assert.assertEquals(5, (int) template.load(exchange, getKey(5))
+					.getValue());
+
+			Transaction txn = db.getTransaction();
+			txn.begin();
+			try {
+				template.update(exchange, getKey(5), -5);
+				Assert.assertEquals(5, (int) executor.submit(otherLoad).get());
+				txn.commit();
+			} finally {
+				txn.end();
+			}
+
+			Assert.assertEquals(-5, (int) executor.submit(otherLoad).get());
+			Assert.assertEquals(-5, (int) template.load(exchange, getKey(5))
+					.getValue());
+
+			long hits = template.getHitCount();
+			Assert.assertEquals(-5, (int) template.load(exchange, getKey(5))
+					.getValue());
+			Assert.assertEquals(hits + 1, template.getHitCount());
+		} finally {
+			executor.shutdown();
+			db.releaseExchange(exchange);
+		}
+	}
+
+	/**
+	 * Tests that loads inside a transaction read its snapshot rather than the
+	 * cache, and do not cache values another transaction has since replaced.
+	 */
+	public void testLoadInsideTransaction() throws Exception {
+		final Exchange exchange = getExchange(db, true);
+		final CachingTemplate<String, Integer> template = new CachingTemplate<String, Integer>(
+				100);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Callable<Boolean> otherUpdate = new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				Exchange other = getExchange(db, false);
+				try {
+					return template.update(other, getKey(5), -5);
+				} finally {
+					db.releaseExchange(other);
+				}
+			}
+		};
+
+		try {
+			Transaction txn = db.getTransaction();
+			txn.begin();
+			try {
+				Assert.assertTrue(executor.submit(otherUpdate).get());
+				Assert.assertEquals(5, (int) template.load(exchange, getKey(5))
+						.getValue());
+				Assert.assertEquals(5, (int) template.loadAll(exchange,
+						Arrays.asList(getKey(5))).get(0).getValue());
+				txn.commit();
+			} finally {
+				txn.end();
+			}
+
+			Assert.assertEquals(0, template.getSize());
+			Assert.assertEquals(-5, (int) template.load(exchange, getKey(5))
+					.getValue());
+
+			// a value cached after the transaction began is not seen in it
+			txn.begin();
+			try {
+				Assert.assertEquals(-5, (int) template.load(exchange, getKey(5))
+						.getValue());
+				executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						Exchange other = getExchange(db, false);
+						try {
+							template.update(other, getKey(5), 55);
+							template.load(other, getKey(5));
+						} finally {
+							db.releaseExchange(other);
+						}
+
+						return null;
+					}
+				}).get();
+				Assert.assertEquals(1, template.getSize());
+				Assert.assertEquals(-5, (int) template.load(exchange, getKey(5))
+						.getValue());
+				txn.commit();
+			} finally {
+				txn.end();
+			}
+
+			Assert.assertEquals(55, (int) template.load(exchange, getKey(5))
+					.getValue());
+		} finally {
+			executor.shutdown();
+			db.releaseExchange(exchange);
+		}
+	}
+
+	/**
+	 * Tests that a thread always loads its own last write, even while other
+	 * threads keep loading (and trying to cache) the same key.
+	 */
+	public void testReadYourWritesUnderConcurrentLoads() throws Exception {
+		final CachingTemplate<String, Integer> template = new CachingTemplate<String, Integer>(
+				100);
+		final AtomicBoolean done = new AtomicBoolean();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		try {
+			List<Future<Void>> readers = new ArrayList<Future<Void>>();
+			for (int t = 0; t < 2; t++) {
+				readers.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						Exchange exchange = getExchange(db, false);
+						while (!done.get()) {
+							template.load(exchange, getKey(5));
+						}
+						db.releaseExchange(exchange);
+
+						return null;
+					}
+				}));
+			}
+
+			Exchange exchange = getExchange(db, false);
+			try {
+				for (int i = 0; i < 20000; i++) {
+					template.insertOrUpdate(exchange, getKey(5), i);
+					Assert.assertEquals(i, (int) template.load(exchange,
+							getKey(5)).getValue());
+				}
+			} finally {
+				db.releaseExchange(exchange);
+			}
+
+			done.set(true);
+			for (Future<Void> reader : readers) {
+				reader.get();
+			}
+		} finally {
+			done.set(true);
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,289 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.ChangeLog.Change;
+import com.g414.persistit.Functional.Mapping;
+import com.g414.persistit.Functional.Mutation;
+import com.g414.persistit.Functional.MutationType;
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.PairImpl;
+import com.g414.persistit.Functional.Traversal;
+import com.g414.persistit.Template.TransactionCallback;
+import com.persistit.Exchange;
+import com.persistit.Key;
+import com.persistit.Transaction;
+
+@Test
+public class ChangeLogTest extends FunctionalTestBase {
+	private static final String LOG = tree + "ChangeLog";
+
+	/**
+	 * Tests that Template writes and Functional.apply mutations are logged in
+	 * order (and only when they change something), that rolled back writes
+	 * are not, and that truncation follows the lowest consumer watermark.
+	 */
+	public void testChangeLog() throws Exception {
+		final Exchange exchange = db.getExchange(vol, tree + "Changed", true);
+		final Exchange logExchange = db.getExchange(vol, LOG, true);
+		exchange.removeAll();
+		logExchange.removeAll();
+
+		final Template<String, Integer> template = new Template<String, Integer>();
+		ChangeLog<String, Integer> log = ChangeLog.attach(template, db, vol,
+				LOG);
+		log.removeConsumer("a");
+		log.removeConsumer("b");
+
+		Assert.assertTrue(template.insert(exchange, "k1", 1));
+		Assert.assertTrue(template.insert(exchange, "k2", 2));
+		Assert.assertFalse(template.insert(exchange, "k1", -1));
+		Assert.assertTrue(template.update(exchange, "k2", 20));
+		Assert.assertTrue(template.delete(exchange, "k1"));
+		Assert.assertFalse(template.delete(exchange, "k1"));
+		Assert.assertTrue(template.insertOrUpdate(exchange, "k3", 3));
+		template.storeAll(exchange, Collections.singletonMap("k4", 4));
+
+		try {
+			template.inTransaction(db, new TransactionCallback<Void>() {
+				@Override
+				public Void inTransaction(Transaction txn) {
+					template.insert(exchange, "k9", 9);
+					throw new IllegalStateException("roll back");
+				}
+			});
+			Assert.fail();
+		} catch (IllegalStateException expected) {
+			// nothing is logged for the rolled back insert
+		}
+
+		final Exchange source = getExchange(db, false);
+		template.inTransaction(db, new TransactionCallback<Void>() {
+			@Override
+			public Void inTransaction(Transaction txn) {
+				Functional.apply(source, template,
+						getFullTraversal(Functional.Direction.ASC).withLimit(2),
+						new Mapping<String, Integer, Mutation<String, Integer>>() {
+							@Override
+							public Mutation<String, Integer> map(
+									Pair<String, Integer> row) {
+								return new Mutation<String, Integer>(
+										MutationType.INSERT_OR_UPDATE,
+										new PairImpl<String, Integer>(row
+												.getKey(), row.getValue()));
+							}
+						}, exchange).traverseAll();
+
+				return null;
+			}
+		});
+		db.releaseExchange(source);
+
+		List<Change<String, Integer>> changes = tail(log, logExchange, 0);
+		Assert.assertEquals(
+				"[INSERT_OR_UPDATE k1=1, INSERT_OR_UPDATE k2=2, "
+						+ "INSERT_OR_UPDATE k2=20, DELETE k1=null, "
+						+ "INSERT_OR_UPDATE k3=3, INSERT_OR_UPDATE k4=4, "
+						+ "INSERT_OR_UPDATE Key:0000=0, "
+						+ "INSERT_OR_UPDATE Key:0001=1]",
+				describe(changes));
+		for (int i = 1; i < changes.size(); i++) {
+			Assert.assertTrue(changes.get(i).getSequence() > changes.get(i - 1)
+					.getSequence());
+		}
+
+		// tail from a checkpoint
+		long third = changes.get(2).getSequence();
+		Assert.assertEquals(6, tail(log, logExchange, third).size());
+
+		Assert.assertEquals(-1L, log.truncate(2));
+		Assert.assertEquals(8, tail(log, logExchange, 0).size());
+
+		long fifth = changes.get(4).getSequence();
+		log.setWatermark("a", third);
+		log.setWatermark("b", fifth);
+		Assert.assertEquals(third, log.getWatermark("a"));
+		Assert.assertEquals(-1L, log.getWatermark("c"));
+
+		Assert.assertEquals(third, log.truncate(2));
+		Assert.assertEquals(changes.get(3).getSequence(),
+				tail(log, logExchange, 0).get(0).getSequence());
+
+		log.removeConsumer("a");
+		Assert.assertEquals(fifth, log.truncate(1));
+		Assert.assertEquals(3, tail(log, logExchange, 0).size());
+
+		log.removeConsumer("b");
+		db.releaseExchange(logExchange);
+		db.releaseExchange(exchange);
+	}
+
+	/**
+	 * Tests that a record committed after one whose transaction is still open
+	 * is held back from tail() and truncate() until that transaction ends, so
+	 * it can not commit behind a consumer's watermark.
+	 */
+	public void testSafeSequence() throws Exception {
+		final Exchange exchange = db.getExchange(vol, tree + "Changed", true);
+		final Exchange logExchange = db.getExchange(vol, LOG, true);
+		exchange.removeAll();
+		logExchange.removeAll();
+
+		final Template<String, Integer> template = new Template<String, Integer>();
+		ChangeLog<String, Integer> log = ChangeLog.attach(template, db, vol,
+				LOG);
+		log.removeConsumer("a");
+
+		final CountDownLatch written = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try {
+			// takes the lower sequence number, then commits last
+			Future<Void> slow = executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					final Exchange slowExchange = db.getExchange(vol, tree
+							+ "Changed", true);
+					template.inTransaction(db, new TransactionCallback<Void>() {
+						@Override
+						public Void inTransaction(Transaction txn) {
+							template.insert(slowExchange, "slow", 1);
+							written.countDown();
+							try {
+								release.await();
+							} catch (InterruptedException e) {
+								throw new RuntimeException(e);
+							}
+
+							return null;
+						}
+					});
+					db.releaseExchange(slowExchange);
+
+					return null;
+				}
+			});
+
+			written.await();
+			Assert.assertTrue(template.insert(exchange, "fast", 2));
+
+			logExchange.clear().append(Key.BEFORE);
+			Assert.assertTrue(logExchange.next());
+			long fast = logExchange.getKey().reset().decodeLong();
+			Assert.assertTrue(log.getSafeSequence() < fast);
+			Assert.assertEquals(0, tail(log, logExchange, 0).size());
+
+			log.setWatermark("a", fast);
+			Assert.assertTrue(log.truncate(10) < fast);
+
+			release.countDown();
+			slow.get();
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+
+		List<Change<String, Integer>> changes = tail(log, logExchange, 0);
+		Assert.assertEquals("[INSERT_OR_UPDATE slow=1, INSERT_OR_UPDATE fast=2]",
+				describe(changes));
+		Assert.assertEquals(log.getWatermark("a"), changes.get(1)
+				.getSequence());
+
+		Assert.assertEquals(changes.get(1).getSequence(), log.truncate(10));
+		Assert.assertEquals(0, tail(log, logExchange, 0).size());
+
+		log.removeConsumer("a");
+		db.releaseExchange(logExchange);
+		db.releaseExchange(exchange);
+	}
+
+	/**
+	 * Tests that a log that is written to but never tailed or truncated does
+	 * not keep a record of every write's transaction.
+	 */
+	public void testAllocationsStayBounded() throws Exception {
+		final Exchange exchange = db.getExchange(vol, tree + "Changed", true);
+		final Exchange logExchange = db.getExchange(vol, LOG, true);
+		exchange.removeAll();
+		logExchange.removeAll();
+
+		final Template<String, Integer> template = new Template<String, Integer>();
+		ChangeLog<String, Integer> log = ChangeLog.attach(template, db, vol,
+				LOG);
+
+		for (int i = 0; i < 5000; i++) {
+			template.insertOrUpdate(exchange, getKey(i % 100), i);
+		}
+		Assert.assertTrue(log.getAllocationCount() <= 1);
+
+		template.inTransaction(db, new TransactionCallback<Void>() {
+			@Override
+			public Void inTransaction(Transaction txn) {
+				for (int i = 0; i < 100; i++) {
+					template.insertOrUpdate(exchange, getKey(i), -i);
+				}
+
+				return null;
+			}
+		});
+		Assert.assertTrue(log.getAllocationCount() <= 100);
+
+		template.insertOrUpdate(exchange, getKey(0), 0);
+		Assert.assertTrue(log.getAllocationCount() <= 1);
+
+		db.releaseExchange(logExchange);
+		db.releaseExchange(exchange);
+	}
+
+	private static List<Change<String, Integer>> tail(
+			ChangeLog<String, Integer> log, Exchange logExchange,
+			long fromSequence) {
+		List<Change<String, Integer>> changes = new ArrayList<Change<String, Integer>>();
+		Traversal<Long, byte[], Change<String, Integer>> tail = log.tail(
+				logExchange, fromSequence);
+		while (tail.hasNext()) {
+			changes.add(tail.next());
+		}
+
+		return changes;
+	}
+
+	private static String describe(List<Change<String, Integer>> changes) {
+		List<String> described = new ArrayList<String>();
+		for (Change<String, Integer> change : changes) {
+			described.add(change.getType() + " " + change.getKey() + "="
+					+ change.getValue());
+		}
+
+		return described.toString();
+	}
+}
@@ -0,0 +1,221 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.Functional.Direction;
+import com.g414.persistit.Functional.Mapping;
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.Traversal;
+import com.g414.persistit.Functional.TraversalSpec;
+import com.persistit.Exchange;
+
+@Test
+public class CompositeKeyTest extends FunctionalTestBase {
+	/**
+	 * Tests Template point operations on (tenant, day, id) CompositeKeys,
+	 * stored one component per Key segment.
+	 */
+	public void testTemplateWithCompositeKeys() throws Exception {
+		final Exchange exchange = loadTree();
+		final Template<CompositeKey, Integer> template = new Template<CompositeKey, Integer>(
+				CompositeKey.CODEC, null);
+
+		CompositeKey key = CompositeKey.of("b", 3L, new byte[] { 1 });
+		Pair<CompositeKey, Integer> row = template.load(exchange, key);
+		Assert.assertEquals(key, row.getKey());
+		Assert.assertEquals(131, row.getValue().intValue());
+
+		exchange.clear().append("b").append(3L).append(new byte[] { 1 });
+		Assert.assertTrue(exchange.isValueDefined());
+
+		Assert.assertFalse(template.insert(exchange, key, -1));
+		Assert.assertTrue(template.update(exchange, key, -1));
+		Assert.assertEquals(-1, template.load(exchange, key).getValue()
+				.intValue());
+		Assert.assertTrue(template.delete(exchange, key));
+		Assert.assertFalse(template.recordExists(exchange, key));
+
+		List<Pair<CompositeKey, Integer>> loaded = template.loadAll(exchange,
+				Arrays.asList(CompositeKey.of("c", 9L, new byte[] { 2 }),
+						CompositeKey.of("a", 0L, new byte[] { 0 })));
+		Assert.assertEquals(292, loaded.get(0).getValue().intValue());
+		Assert.assertEquals(0, loaded.get(1).getValue().intValue());
+
+		db.releaseExchange(exchange);
+	}
+
+	/**
+	 * Tests prefix and sub-range traversals over the leading segments, in
+	 * each direction: a tenant prefix, a (tenant, day) prefix and a range of
+	 * days whose inclusive end covers the whole last day.
+	 */
+	public void testPrefixAndRangeTraversals() throws Exception {
+		final Exchange exchange = loadTree();
+		TraversalSpec<CompositeKey, Integer> spec = new TraversalSpec<CompositeKey, Integer>()
+				.withKeyCodec(CompositeKey.CODEC).withDeep(true);
+
+		for (Direction direction : Direction.values()) {
+			boolean isAscending = direction.equals(Direction.ASC);
+			TraversalSpec<CompositeKey, Integer> directed = new TraversalSpec<CompositeKey, Integer>(
+					direction).withKeyCodec(CompositeKey.CODEC).withDeep(true);
+
+			List<Integer> tenant = values(exchange,
+					directed.withPrefix(CompositeKey.of("b")));
+			Assert.assertEquals(30, tenant.size());
+			Assert.assertEquals(isAscending ? 100 : 192, tenant.get(0)
+					.intValue());
+
+			List<Integer> day = values(exchange,
+					directed.withPrefix(CompositeKey.of("b", 4L)));
+			Assert.assertEquals(ordered(isAscending, 140, 141, 142), day);
+
+			// days 3 to 5 of tenant b, seeking to whichever end comes first
+			CompositeKey low = CompositeKey.of("b", 3L);
+			CompositeKey high = CompositeKey.of("b", 5L);
+			List<Integer> days = values(exchange, isAscending ? directed
+					.withStart(low, true).withEnd(high, true) : directed
+					.withStart(high, true).withEnd(low, true));
+			Assert.assertEquals(9, days.size());
+			Assert.assertEquals(isAscending ? 130 : 152, days.get(0)
+					.intValue());
+
+			// an exclusive start skips the whole day
+			List<Integer> after = values(exchange, directed.withStart(
+					isAscending ? low : high, false).withLimit(1));
+			Assert.assertEquals(isAscending ? 140 : 142, after.get(0)
+					.intValue());
+		}
+
+		List<CompositeKey> keys = new ArrayList<CompositeKey>();
+		Traversal<CompositeKey, Integer, CompositeKey> traversal = Functional
+				.map(exchange, spec.withPrefix(CompositeKey.of("c", 9L)),
+						new Mapping<CompositeKey, Integer, CompositeKey>() {
+							@Override
+							public CompositeKey map(
+									Pair<CompositeKey, Integer> row) {
+								return row.getKey();
+							}
+						});
+		while (traversal.hasNext()) {
+			keys.add(traversal.next());
+		}
+		Assert.assertEquals(3, keys.size());
+		Assert.assertEquals(CompositeKey.of("c", 9L, new byte[] { 0 }),
+				keys.get(0));
+
+		db.releaseExchange(exchange);
+	}
+
+	/** Tests CompositeKey#prefix, which rejects lengths outside the key */
+	public void testPrefix() throws Exception {
+		CompositeKey key = CompositeKey.of("b", 4L, new byte[] { 1 });
+
+		Assert.assertEquals(CompositeKey.of("b", 4L), key.prefix(2));
+		Assert.assertEquals(key, key.prefix(3));
+		Assert.assertEquals(0, key.prefix(0).size());
+
+		for (int length : new int[] { -1, 4 }) {
+			try {
+				key.prefix(length);
+				Assert.fail();
+			} catch (IllegalArgumentException expected) {
+				// lengths run from 0 to size()
+			}
+		}
+	}
+
+	/**
+	 * Tests that withPrefix on a default (shallow) spec still covers every
+	 * key below the prefix.
+	 */
+	public void testPrefixOfShallowSpec() throws Exception {
+		final Exchange exchange = loadTree();
+
+		for (Direction direction : Direction.values()) {
+			boolean isAscending = direction.equals(Direction.ASC);
+			TraversalSpec<CompositeKey, Integer> shallow = new TraversalSpec<CompositeKey, Integer>(
+					direction).withKeyCodec(CompositeKey.CODEC);
+
+			Assert.assertEquals(30,
+					values(exchange, shallow.withPrefix(CompositeKey.of("b")))
+							.size());
+			Assert.assertEquals(ordered(isAscending, 140, 141, 142), values(
+					exchange, shallow.withPrefix(CompositeKey.of("b", 4L))));
+		}
+
+		db.releaseExchange(exchange);
+	}
+
+	/** Stores value tenant * 100 + day * 10 + id for 3 x 10 x 3 keys */
+	private static Exchange loadTree() throws Exception {
+		final Exchange exchange = db.getExchange(vol, tree + "Composite",
+				true);
+		exchange.removeAll();
+
+		final Template<CompositeKey, Integer> template = new Template<CompositeKey, Integer>(
+				CompositeKey.CODEC, null);
+		String[] tenants = new String[] { "a", "b", "c" };
+		for (int t = 0; t < tenants.length; t++) {
+			for (long day = 0; day < 10; day++) {
+				for (byte id = 0; id < 3; id++) {
+					template.insert(exchange,
+							CompositeKey.of(tenants[t], day, new byte[] { id }),
+							(int) (t * 100 + day * 10 + id));
+				}
+			}
+		}
+
+		return exchange;
+	}
+
+	private static List<Integer> values(Exchange exchange,
+			TraversalSpec<CompositeKey, Integer> spec) {
+		List<Integer> values = new ArrayList<Integer>();
+		Traversal<CompositeKey, Integer, Integer> traversal = Functional.map(
+				exchange, spec, new Mapping<CompositeKey, Integer, Integer>() {
+					@Override
+					public Integer map(Pair<CompositeKey, Integer> row) {
+						return row.getValue();
+					}
+				});
+		while (traversal.hasNext()) {
+			values.add(traversal.next());
+		}
+
+		return values;
+	}
+
+	private static List<Integer> ordered(boolean isAscending,
+			Integer... values) {
+		List<Integer> list = new ArrayList<Integer>(Arrays.asList(values));
+		if (!isAscending) {
+			Collections.reverse(list);
+		}
+
+		return list;
+	}
+}
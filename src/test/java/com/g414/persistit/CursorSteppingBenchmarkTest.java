@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.Functional.Direction;
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.Reduction;
+import com.g414.persistit.Functional.TraversalSpec;
+import com.persistit.Exchange;
+import com.persistit.Key;
+import com.persistit.exception.PersistitException;
+
+/**
+ * Compares a hasNext()+next() cursor loop (two B-tree traversals per row)
+ * against single-step traverse() calls, in both directions, along with the
+ * cost of a full Functional traversal on top of the single-step loop.
+ */
+@Test(groups = "slow")
+public class CursorSteppingBenchmarkTest extends BenchmarkTestBase {
+	public void testCursorStepping() throws Exception {
+		final int rows = getIntProperty("bench.rows", 10000000);
+		final Exchange exchange = db.getExchange(vol, tree, true);
+
+		for (int i = 0; i < rows; i++) {
+			exchange.clear().append(i);
+			exchange.getValue().put(i);
+			exchange.store();
+		}
+
+		for (final Direction direction : Direction.values()) {
+			// warm up the buffer pool and the JIT before measuring
+			Assert.assertEquals(rows, stepTwice(exchange, direction));
+			Assert.assertEquals(rows, stepOnce(exchange, direction));
+
+			final AtomicLong count = new AtomicLong();
+
+			report("hasNext()+next() " + direction, rows, time(new Runnable() {
+				public void run() {
+					count.set(stepTwice(exchange, direction));
+				}
+			}));
+			Assert.assertEquals(rows, count.get());
+
+			report("traverse() " + direction, rows, time(new Runnable() {
+				public void run() {
+					count.set(stepOnce(exchange, direction));
+				}
+			}));
+			Assert.assertEquals(rows, count.get());
+
+			report("Functional.reduce " + direction, rows, time(new Runnable() {
+				public void run() {
+					count.set(Functional.reduce(exchange,
+							new TraversalSpec<Integer, Integer>(direction),
+							new Reduction<Integer, Integer, Long>() {
+								@Override
+								public Long reduce(Pair<Integer, Integer> row,
+										Long accum) {
+									return accum + 1;
+								}
+							}, 0L));
+				}
+			}));
+			Assert.assertEquals(rows, count.get());
+		}
+
+		db.releaseExchange(exchange);
+	}
+
+	private static long stepTwice(Exchange exchange, Direction direction) {
+		try {
+			long count = 0;
+			if (direction.equals(Direction.ASC)) {
+				exchange.clear().to(Key.BEFORE);
+				while (exchange.hasNext()) {
+					exchange.next();
+					count += 1;
+				}
+			} else {
+				exchange.clear().to(Key.AFTER);
+				while (exchange.hasPrevious()) {
+					exchange.previous();
+					count += 1;
+				}
+			}
+
+			return count;
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static long stepOnce(Exchange exchange, Direction direction) {
+		try {
+			long count = 0;
+			boolean isAscending = direction.equals(Direction.ASC);
+			Key.Direction step = isAscending ? Key.GT : Key.LT;
+
+			exchange.clear().to(isAscending ? Key.BEFORE : Key.AFTER);
+			while (exchange.traverse(step, true)) {
+				count += 1;
+			}
+
+			return count;
+		} catch (PersistitException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
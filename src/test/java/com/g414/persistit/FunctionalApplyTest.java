@@ -23,6 +23,7 @@ import junit.framework.Assert;
 
 import org.testng.annotations.Test;
 
+import com.g414.persistit.Functional.ChunkSpec;
 import com.g414.persistit.Functional.Direction;
 import com.g414.persistit.Functional.Filter;
 import com.g414.persistit.Functional.Mapping;
@@ -30,6 +31,7 @@ import com.g414.persistit.Functional.Mutation;
 import com.g414.persistit.Functional.MutationType;
 import com.g414.persistit.Functional.Pair;
 import com.g414.persistit.Functional.PairImpl;
+import com.g414.persistit.Functional.ProgressListener;
 import com.g414.persistit.Functional.Traversal;
 import com.g414.persistit.Template.TransactionCallback;
 import com.persistit.Exchange;
@@ -347,4 +349,111 @@ public class FunctionalApplyTest extends FunctionalTestBase {
 
 		Assert.assertEquals(counter.get(), 500);
 	}
+
+	/**
+	 * Tests chunked Functional#apply with an increment mutation in each
+	 * direction; every row must be incremented exactly once even though the
+	 * traversal is resumed in a new transaction after every chunk.
+	 */
+	public void testApplyIncrementMutationInChunks() throws Exception {
+		final Template<String, Integer> template = new Template<String, Integer>();
+
+		final Mapping<String, Integer, Mutation<String, Integer>> incrementMutation = new Mapping<String, Integer, Functional.Mutation<String, Integer>>() {
+			@Override
+			public Mutation<String, Integer> map(Pair<String, Integer> row) {
+				return new Mutation<String, Integer>(
+						MutationType.INSERT_OR_UPDATE,
+						new PairImpl<String, Integer>(row.getKey(),
+								row.getValue() + 1));
+			}
+		};
+
+		final Exchange source = getExchange(db, true);
+		final Exchange target = getExchange(db, true);
+		final AtomicLong chunks = new AtomicLong();
+		final AtomicLong lastRows = new AtomicLong();
+
+		ProgressListener listener = new ProgressListener() {
+			@Override
+			public void progress(long rows, long mutations, long bytes,
+					long elapsedNanos) {
+				chunks.getAndIncrement();
+				lastRows.set(rows);
+				Assert.assertEquals(rows, mutations);
+			}
+		};
+
+		long applied = Functional.apply(source, template,
+				getFullTraversal(Direction.ASC), incrementMutation, target,
+				new ChunkSpec(7), listener);
+
+		Assert.assertEquals(1000, applied);
+		Assert.assertEquals(1000, lastRows.get());
+		Assert.assertEquals(143, chunks.get());
+
+		applied = Functional.apply(source, template,
+				getFullTraversal(Direction.DESC), incrementMutation, target,
+				new ChunkSpec(0, 1024), null);
+
+		Assert.assertEquals(1000, applied);
+
+		final AtomicLong counter = new AtomicLong();
+		Traversal<String, Integer, Integer> traversalAscending = Functional
+				.map(source, getFullTraversal(Direction.ASC),
+						getIdentityMapping(counter, true, false));
+
+		while (traversalAscending.hasNext()) {
+			Integer value = traversalAscending.next();
+			Assert.assertEquals((int) counter.get() + 1, value.intValue());
+		}
+
+		Assert.assertEquals(counter.get(), 1000);
+	}
+
+	/**
+	 * Tests the chunked Functional#apply with start/end keys, an offset and a
+	 * limit: the offset applies once and the limit spans all chunks.
+	 */
+	public void testApplyInChunksWithBoundsAndLimit() throws Exception {
+		final Template<String, Integer> template = new Template<String, Integer>();
+
+		final Mapping<String, Integer, Mutation<String, Integer>> deleteMutation = new Mapping<String, Integer, Functional.Mutation<String, Integer>>() {
+			@Override
+			public Mutation<String, Integer> map(Pair<String, Integer> row) {
+				return new Mutation<String, Integer>(MutationType.DELETE, row);
+			}
+		};
+
+		final Exchange source = getExchange(db, true);
+		final Exchange target = getExchange(db, true);
+
+		for (Direction direction : Direction.values()) {
+			boolean isAscending = direction.equals(Direction.ASC);
+
+			long applied = Functional.apply(source, template,
+					getFullTraversal(direction)
+							.withStart(getKey(isAscending ? 100 : 899), true)
+							.withEnd(getKey(isAscending ? 899 : 100), true)
+							.withOffset(10).withLimit(50), deleteMutation,
+					target, new ChunkSpec(7), null);
+
+			Assert.assertEquals(50, applied);
+		}
+
+		final AtomicLong counter = new AtomicLong();
+		Functional.foreach(source, getFullTraversal(Direction.ASC),
+				new Mapping<String, Integer, Void>() {
+					@Override
+					public Void map(Pair<String, Integer> row) {
+						int value = row.getValue();
+						Assert.assertFalse((value >= 110 && value < 160)
+								|| (value > 839 && value <= 889));
+						counter.getAndIncrement();
+
+						return null;
+					}
+				});
+
+		Assert.assertEquals(900, counter.get());
+	}
 }
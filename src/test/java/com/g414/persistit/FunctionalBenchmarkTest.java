@@ -0,0 +1,412 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.Functional.ChunkSpec;
+import com.g414.persistit.Functional.Direction;
+import com.g414.persistit.Functional.Filter;
+import com.g414.persistit.Functional.Mapping;
+import com.g414.persistit.Functional.Mutation;
+import com.g414.persistit.Functional.MutationType;
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.RawMapping;
+import com.g414.persistit.Functional.Reduction;
+import com.g414.persistit.Functional.Traversal;
+import com.g414.persistit.Functional.TraversalSpec;
+import com.g414.persistit.Template.TransactionCallback;
+import com.persistit.Exchange;
+import com.persistit.Transaction;
+
+/**
+ * Measures the core Functional operations (map, foreach, reduce and chunked
+ * apply) for each combination of traversal direction and Filter selectivity
+ * given by the bench.direction and bench.selectivity properties.
+ */
+@Test(groups = "slow")
+public class FunctionalBenchmarkTest extends BenchmarkTestBase {
+	public void testFunctionalOperations() throws Exception {
+		final int rows = getIntProperty("bench.rows", 200000);
+		final int valueSize = getIntProperty("bench.valueSize", 128);
+
+		load(rows, valueSize);
+
+		final Exchange exchange = db.getExchange(vol, tree, true);
+		final Exchange target = db.getExchange(vol, tree, true);
+		final Template<Integer, String> template = new Template<Integer, String>();
+
+		// warm up the buffer pool and the JIT before measuring
+		Functional.reduce(exchange, spec(Direction.ASC, 100), count(), 0L);
+
+		for (Direction direction : getDirections()) {
+			for (int percent : getSelectivities()) {
+				final TraversalSpec<Integer, String> spec = spec(direction,
+						percent);
+				final int modulus = 100 / percent;
+				final long expected = (rows + modulus - 1) / modulus;
+				final AtomicLong visited = new AtomicLong();
+
+				Map<String, Object> params = new LinkedHashMap<String, Object>();
+				params.put("direction", direction.name());
+				params.put("selectivity", percent);
+				params.put("valueSize", valueSize);
+
+				String suffix = " " + direction + " " + percent + "%";
+
+				report("map" + suffix, params, rows, time(new Runnable() {
+					public void run() {
+						long count = 0;
+						Traversal<Integer, String, Integer> traversal = Functional
+								.map(exchange, spec,
+										new Mapping<Integer, String, Integer>() {
+											@Override
+											public Integer map(
+													Pair<Integer, String> row) {
+												return row.getValue().length();
+											}
+										});
+						while (traversal.hasNext()) {
+							traversal.next();
+							count += 1;
+						}
+
+						visited.set(count);
+					}
+				}));
+				Assert.assertEquals(expected, visited.get());
+
+				visited.set(0);
+				report("foreach" + suffix, params, rows, time(new Runnable() {
+					public void run() {
+						Functional.foreach(exchange, spec,
+								new Mapping<Integer, String, Void>() {
+									@Override
+									public Void map(Pair<Integer, String> row) {
+										visited.incrementAndGet();
+
+										return null;
+									}
+								});
+					}
+				}));
+				Assert.assertEquals(expected, visited.get());
+
+				report("reduce" + suffix, params, rows, time(new Runnable() {
+					public void run() {
+						visited.set(Functional.reduce(exchange, spec, count(),
+								0L));
+					}
+				}));
+				Assert.assertEquals(expected, visited.get());
+
+				report("apply" + suffix, params, rows, time(new Runnable() {
+					public void run() {
+						visited.set(Functional.apply(exchange, template, spec,
+								rewrite(), target, new ChunkSpec(10000), null));
+					}
+				}));
+				Assert.assertEquals(expected, visited.get());
+			}
+		}
+
+		db.releaseExchange(target);
+		db.releaseExchange(exchange);
+	}
+
+	/**
+	 * Compares a reduce with and without per-traversal statistics (at the
+	 * default sample interval).
+	 */
+	public void testStatsOverhead() throws Exception {
+		final int rows = getIntProperty("bench.rows", 200000);
+		final int valueSize = getIntProperty("bench.valueSize", 128);
+
+		load(rows, valueSize);
+
+		final Exchange exchange = db.getExchange(vol, tree, false);
+		final TraversalSpec<Integer, String> plain = spec(Direction.ASC, 10);
+		final TraversalSpec<Integer, String> recorded = plain
+				.withStats("FunctionalBenchmarkTest");
+
+		try {
+			for (int round = 0; round < 3; round++) {
+				long plainNanos = time(new Runnable() {
+					public void run() {
+						Functional.reduce(exchange, plain, count(), 0L);
+					}
+				});
+				long recordedNanos = time(new Runnable() {
+					public void run() {
+						Functional.reduce(exchange, recorded, count(), 0L);
+					}
+				});
+
+				if (round > 0) {
+					TraversalStats stats = TraversalStats
+							.forName("FunctionalBenchmarkTest");
+					Map<String, Object> params = new LinkedHashMap<String, Object>();
+					params.put("cursorNanosPerRow",
+							stats.getCursorNanosPerRow());
+					params.put("decodeNanosPerRow",
+							stats.getDecodeNanosPerRow());
+
+					report("reduce 10% without stats", rows, plainNanos);
+					report("reduce 10% with stats", params, rows,
+							recordedNanos);
+				}
+			}
+		} finally {
+			TraversalStats.remove("FunctionalBenchmarkTest");
+			db.releaseExchange(exchange);
+		}
+	}
+
+	/**
+	 * Compares fetching 50 rows from the middle of the tree with a secondary
+	 * Filter (which has to scan to the end) against seeking with a start key
+	 * and stopping at a limit.
+	 */
+	public void testRangeQuery() throws Exception {
+		final int rows = getIntProperty("bench.rows", 200000);
+		final int valueSize = getIntProperty("bench.valueSize", 128);
+		final int queries = 100;
+
+		load(rows, valueSize);
+
+		final Exchange exchange = db.getExchange(vol, tree, false);
+
+		for (int round = 0; round < 2; round++) {
+			long filterNanos = time(new Runnable() {
+				public void run() {
+					for (int q = 0; q < queries; q++) {
+						final int first = (rows / queries) * q;
+						Assert.assertEquals(Math.min(50, rows - first),
+								Functional.reduce(exchange,
+										new TraversalSpec<Integer, String>(
+												Direction.ASC, null,
+												new Filter<Integer, String>() {
+													@Override
+													public Boolean map(
+															Pair<Integer, String> row) {
+														return row.getKey() >= first
+																&& row.getKey() < first + 50;
+													}
+												}), count(), 0L)
+										.intValue());
+					}
+				}
+			});
+			long seekNanos = time(new Runnable() {
+				public void run() {
+					for (int q = 0; q < queries; q++) {
+						int first = (rows / queries) * q;
+						Assert.assertEquals(Math.min(50, rows - first),
+								Functional.reduce(exchange,
+										new TraversalSpec<Integer, String>()
+												.withStart(first, true)
+												.withLimit(50), count(), 0L)
+										.intValue());
+					}
+				}
+			});
+
+			if (round > 0) {
+				report("50-row query (secondary Filter)", queries,
+						filterNanos);
+				report("50-row query (start key + limit)", queries, seekNanos);
+			}
+		}
+
+		db.releaseExchange(exchange);
+	}
+
+	/**
+	 * Compares map() and prefetch() with a Mapping that does real work per
+	 * row (building a JSON-like string), so stepping and decoding can overlap
+	 * with it.
+	 */
+	public void testPrefetch() throws Exception {
+		final int rows = getIntProperty("bench.rows", 200000);
+		final int valueSize = getIntProperty("bench.valueSize", 128);
+
+		load(rows, valueSize);
+
+		final Exchange exchange = db.getExchange(vol, tree, false);
+		final Mapping<Integer, String, Integer> render = new Mapping<Integer, String, Integer>() {
+			@Override
+			public Integer map(Pair<Integer, String> row) {
+				StringBuilder json = new StringBuilder();
+				json.append("{\"key\":").append(row.getKey())
+						.append(",\"value\":\"");
+				for (char c : row.getValue().toCharArray()) {
+					json.append(Character.toUpperCase(c));
+				}
+
+				return json.append("\"}").toString().hashCode();
+			}
+		};
+
+		for (int round = 0; round < 2; round++) {
+			long mapNanos = time(new Runnable() {
+				public void run() {
+					Functional.map(exchange,
+							new TraversalSpec<Integer, String>(), render)
+							.traverseAll();
+				}
+			});
+			long prefetchNanos = time(new Runnable() {
+				public void run() {
+					Functional.prefetch(db, vol, tree,
+							new TraversalSpec<Integer, String>(), render, 1024)
+							.traverseAll();
+				}
+			});
+
+			if (round > 0) {
+				report("map (render on the cursor thread)", rows, mapNanos);
+				report("prefetch (1024-row buffer)", rows, prefetchNanos);
+			}
+		}
+
+		db.releaseExchange(exchange);
+	}
+
+	/**
+	 * Compares checksumming every row after decoding it (then converting the
+	 * key and value back to bytes) against checksumming the encoded bytes
+	 * with a RawMapping.
+	 */
+	public void testRawChecksum() throws Exception {
+		final int rows = getIntProperty("bench.rows", 200000);
+		final int valueSize = getIntProperty("bench.valueSize", 128);
+
+		load(rows, valueSize);
+
+		final Exchange exchange = db.getExchange(vol, tree, false);
+		final CRC32 crc = new CRC32();
+
+		for (int round = 0; round < 2; round++) {
+			long decodedNanos = time(new Runnable() {
+				public void run() {
+					crc.reset();
+					Functional.foreach(exchange,
+							new TraversalSpec<Integer, String>(),
+							new Mapping<Integer, String, Void>() {
+								@Override
+								public Void map(Pair<Integer, String> row) {
+									crc.update(row.getKey().toString()
+											.getBytes());
+									crc.update(row.getValue().getBytes());
+
+									return null;
+								}
+							});
+				}
+			});
+			long rawNanos = time(new Runnable() {
+				public void run() {
+					crc.reset();
+					Assert.assertEquals(rows, Functional.foreachRaw(exchange,
+							new TraversalSpec<Integer, String>(),
+							new RawMapping<Void>() {
+								@Override
+								public Void map(byte[] keyBytes, int keyOffset,
+										int keyLength, byte[] valueBytes,
+										int valueOffset, int valueLength) {
+									crc.update(keyBytes, keyOffset, keyLength);
+									crc.update(valueBytes, valueOffset,
+											valueLength);
+
+									return null;
+								}
+							}));
+				}
+			});
+
+			if (round > 0) {
+				report("checksum (decoded rows)", rows, decodedNanos);
+				report("checksum (raw bytes)", rows, rawNanos);
+			}
+		}
+
+		db.releaseExchange(exchange);
+	}
+
+	private static TraversalSpec<Integer, String> spec(Direction direction,
+			int percent) {
+		final int modulus = 100 / percent;
+
+		return new TraversalSpec<Integer, String>(direction, null,
+				new Filter<Integer, String>() {
+					@Override
+					public Boolean map(Pair<Integer, String> row) {
+						return row.getKey() % modulus == 0;
+					}
+				});
+	}
+
+	private static Reduction<Integer, String, Long> count() {
+		return new Reduction<Integer, String, Long>() {
+			@Override
+			public Long reduce(Pair<Integer, String> row, Long accum) {
+				return accum + 1;
+			}
+		};
+	}
+
+	private static Mapping<Integer, String, Mutation<Integer, String>> rewrite() {
+		return new Mapping<Integer, String, Mutation<Integer, String>>() {
+			@Override
+			public Mutation<Integer, String> map(Pair<Integer, String> row) {
+				return new Mutation<Integer, String>(
+						MutationType.INSERT_OR_UPDATE, row);
+			}
+		};
+	}
+
+	private void load(final int rows, final int valueSize) throws Exception {
+		final Exchange exchange = db.getExchange(vol, tree, true);
+		final Template<Integer, String> template = new Template<Integer, String>();
+		final StringBuilder padding = new StringBuilder();
+		while (padding.length() < valueSize) {
+			padding.append("0123456789abcdef");
+		}
+
+		template.inTransaction(db, new TransactionCallback<Void>() {
+			@Override
+			public Void inTransaction(Transaction txn) {
+				for (int i = 0; i < rows; i++) {
+					template.insertOrUpdate(exchange, i,
+							padding.substring(0, valueSize));
+				}
+
+				return null;
+			}
+		});
+
+		db.releaseExchange(exchange);
+	}
+}
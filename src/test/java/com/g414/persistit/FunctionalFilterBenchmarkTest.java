@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.Functional.Direction;
+import com.g414.persistit.Functional.Filter;
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.TraversalSpec;
+import com.g414.persistit.Template.TransactionCallback;
+import com.persistit.Exchange;
+import com.persistit.Transaction;
+
+/**
+ * Measures traversals with a selective secondary Filter over large values: a
+ * key-only Filter (values of rejected rows are never decoded) against a
+ * Filter that touches the value of every row (the eager decoding cost).
+ */
+@Test(groups = "slow")
+public class FunctionalFilterBenchmarkTest extends BenchmarkTestBase {
+	public void testFilterSelectivity() throws Exception {
+		final int rows = getIntProperty("bench.rows", 200000);
+		final int valueSize = getIntProperty("bench.valueSize", 1024);
+
+		load(rows, valueSize);
+
+		// warm up the buffer pool and the JIT before measuring
+		Exchange warmup = db.getExchange(vol, tree, false);
+		count(warmup, null);
+		db.releaseExchange(warmup);
+
+		for (int percent : getSelectivities()) {
+			final int modulus = 100 / percent;
+			final Exchange exchange = db.getExchange(vol, tree, false);
+
+			final AtomicLong lazyCount = new AtomicLong();
+			long lazyNanos = time(new Runnable() {
+				public void run() {
+					lazyCount.set(count(exchange, new Filter<Integer, String>() {
+						@Override
+						public Boolean map(Pair<Integer, String> row) {
+							return row.getKey() % modulus == 0;
+						}
+					}));
+				}
+			});
+
+			final AtomicLong eagerCount = new AtomicLong();
+			long eagerNanos = time(new Runnable() {
+				public void run() {
+					eagerCount.set(count(exchange,
+							new Filter<Integer, String>() {
+								@Override
+								public Boolean map(Pair<Integer, String> row) {
+									return row.getValue() != null
+											&& row.getKey() % modulus == 0;
+								}
+							}));
+				}
+			});
+
+			db.releaseExchange(exchange);
+
+			long expected = (rows + modulus - 1) / modulus;
+			Assert.assertEquals(expected, lazyCount.get());
+			Assert.assertEquals(expected, eagerCount.get());
+
+			report("filter " + percent + "% key-only (lazy value)", rows,
+					lazyNanos);
+			report("filter " + percent + "% value-touching (eager)", rows,
+					eagerNanos);
+		}
+	}
+
+	private static long count(Exchange exchange, Filter<Integer, String> filter) {
+		return Functional.reduce(exchange, new TraversalSpec<Integer, String>(
+				Direction.ASC, null, filter),
+				new Functional.Reduction<Integer, String, Long>() {
+					@Override
+					public Long reduce(Pair<Integer, String> row, Long accum) {
+						return accum + 1;
+					}
+				}, 0L);
+	}
+
+	private void load(final int rows, final int valueSize) throws Exception {
+		final Exchange exchange = db.getExchange(vol, tree, true);
+		final Template<Integer, String> template = new Template<Integer, String>();
+		final StringBuilder padding = new StringBuilder();
+		while (padding.length() < valueSize) {
+			padding.append("0123456789abcdef");
+		}
+
+		template.inTransaction(db, new TransactionCallback<Void>() {
+			@Override
+			public Void inTransaction(Transaction txn) {
+				for (int i = 0; i < rows; i++) {
+					template.insertOrUpdate(exchange, i,
+							padding.substring(0, valueSize) + i);
+				}
+
+				return null;
+			}
+		});
+
+		db.releaseExchange(exchange);
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.Functional.Direction;
+import com.g414.persistit.Functional.JoinMapping;
+import com.g414.persistit.Functional.JoinType;
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.Traversal;
+import com.g414.persistit.Functional.TraversalSpec;
+import com.persistit.Exchange;
+
+@Test
+public class FunctionalJoinTest extends FunctionalTestBase {
+	/**
+	 * Tests Functional#mergeJoin on the first key segment of (id, n) keys,
+	 * where left ids have one or two rows and right ids zero to two rows (so
+	 * there are one-to-many and many-to-many groups), and some ids are only on
+	 * one side. Each join type, in each direction, must produce the rows of a
+	 * nested-loop join, in key order.
+	 */
+	public void testMergeJoin() throws Exception {
+		final Exchange left = db.getExchange(vol, tree + "Left", true);
+		final Exchange right = db.getExchange(vol, tree + "Right", true);
+		left.removeAll();
+		right.removeAll();
+
+		for (int id = 0; id < 10; id++) {
+			for (int n = 0; id != 5 && n < id % 2 + 1; n++) {
+				left.clear().append(id).append(n);
+				left.getValue().put(id * 10 + n);
+				left.store();
+			}
+		}
+		for (int id = 0; id < 13; id++) {
+			for (int n = 0; id != 3 && n < id % 3; n++) {
+				right.clear().append(id).append(n);
+				right.getValue().put(id * 10 + n);
+				right.store();
+			}
+		}
+
+		JoinMapping<Object, Integer, Object, Integer, String> describe = new JoinMapping<Object, Integer, Object, Integer, String>() {
+			@Override
+			public String map(Pair<Object, Integer> l, Pair<Object, Integer> r) {
+				return ((l == null) ? "-" : l.getValue()) + "/"
+						+ ((r == null) ? "-" : r.getValue());
+			}
+		};
+
+		for (JoinType joinType : JoinType.values()) {
+			List<String> expected = nestedLoopJoin(joinType);
+
+			for (Direction direction : Direction.values()) {
+				Traversal<Object, Integer, String> join = Functional.mergeJoin(
+						left, new TraversalSpec<Object, Integer>(direction,
+								null, null), right,
+						new TraversalSpec<Object, Integer>(direction, null,
+								null), 1, joinType, describe);
+
+				List<String> actual = new ArrayList<String>();
+				while (join.hasNext()) {
+					actual.add(join.next());
+				}
+
+				if (direction.equals(Direction.DESC)) {
+					Collections.reverse(actual);
+				}
+				Assert.assertEquals(joinType + " " + direction, expected,
+						actual);
+			}
+		}
+
+		db.releaseExchange(right);
+		db.releaseExchange(left);
+	}
+
+	private static List<String> nestedLoopJoin(JoinType joinType) {
+		List<String> rows = new ArrayList<String>();
+
+		for (int id = 0; id < 13; id++) {
+			int leftRows = (id == 5 || id >= 10) ? 0 : id % 2 + 1;
+			int rightRows = (id == 3) ? 0 : id % 3;
+
+			if (leftRows > 0 && rightRows > 0) {
+				for (int l = 0; l < leftRows; l++) {
+					for (int r = 0; r < rightRows; r++) {
+						rows.add((id * 10 + l) + "/" + (id * 10 + r));
+					}
+				}
+			} else if (leftRows > 0 && !joinType.equals(JoinType.INNER)) {
+				for (int l = 0; l < leftRows; l++) {
+					rows.add((id * 10 + l) + "/-");
+				}
+			} else if (rightRows > 0 && joinType.equals(JoinType.FULL_OUTER)) {
+				for (int r = 0; r < rightRows; r++) {
+					rows.add("-/" + (id * 10 + r));
+				}
+			}
+		}
+
+		return rows;
+	}
+}
@@ -17,21 +17,34 @@
  */
 package com.g414.persistit;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 
 import junit.framework.Assert;
 
 import org.testng.annotations.Test;
 
+import com.g414.persistit.Functional.CloseableTraversal;
 import com.g414.persistit.Functional.Direction;
 import com.g414.persistit.Functional.Filter;
 import com.g414.persistit.Functional.Mapping;
 import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.RawMapping;
+import com.g414.persistit.Functional.SplittableTraversal;
 import com.g414.persistit.Functional.Traversal;
 import com.g414.persistit.Functional.TraversalSpec;
 import com.persistit.Exchange;
+import com.persistit.Key;
 import com.persistit.KeyFilter;
 import com.persistit.KeyFilter.Term;
+import com.persistit.Transaction;
+import com.persistit.Value;
 
 @Test
 public class FunctionalMapTest extends FunctionalTestBase {
@@ -161,6 +174,479 @@ public class FunctionalMapTest extends FunctionalTestBase {
 		Assert.assertEquals(counter.get(), 100);
 	}
 
+	/**
+	 * Tests Functional#map with both a persistit KeyFilter and a row filter
+	 * that only looks at keys; the rows at the end of the key range are
+	 * rejected by the row filter and must not leak out of the traversal.
+	 */
+	public void testIdentityMappingWithKeyFilterAndRowFilter()
+			throws Exception {
+		final AtomicLong counter = new AtomicLong();
+		final Exchange exchange = getExchange(db, true);
+
+		KeyFilter filter100 = new KeyFilter(new Term[] { KeyFilter.rangeTerm(
+				getKey(100), getKey(200), true, false) });
+
+		Traversal<String, Integer, Integer> traversalAscending = Functional
+				.map(exchange, new TraversalSpec<String, Integer>(
+						Direction.ASC, filter100,
+						new Filter<String, Integer>() {
+							@Override
+							public Boolean map(Pair<String, Integer> row) {
+								return row.getKey().compareTo(getKey(150)) < 0;
+							}
+						}), getIdentityMapping(counter, true, true));
+
+		while (traversalAscending.hasNext()) {
+			Integer value = traversalAscending.next();
+			Assert.assertEquals(100 + ((int) counter.get() - 1),
+					value.intValue());
+		}
+
+		Assert.assertEquals(50, counter.get());
+	}
+
+	/**
+	 * Tests Functional#map with a key-only traversal (in each direction); all
+	 * keys must be visited in order and values must be unavailable.
+	 */
+	public void testKeyOnlyMapping() throws Exception {
+		final Exchange exchange = getExchange(db, true);
+
+		for (Direction direction : Direction.values()) {
+			final AtomicLong counter = new AtomicLong();
+			final boolean isAscending = direction.equals(Direction.ASC);
+
+			Functional.foreach(exchange, getFullTraversal(direction)
+					.withKeysOnly(true), new Mapping<String, Integer, Void>() {
+				@Override
+				public Void map(Pair<String, Integer> row) {
+					int expected = (int) counter.getAndIncrement();
+					Assert.assertEquals(
+							getKey(isAscending ? expected : 999 - expected),
+							row.getKey());
+
+					try {
+						row.getValue();
+						Assert.fail();
+					} catch (UnsupportedOperationException expectedException) {
+						// values are not fetched
+					}
+
+					return null;
+				}
+			});
+
+			Assert.assertEquals(1000, counter.get());
+		}
+	}
+
+	/**
+	 * Tests Functional#mapRaw and #foreachRaw: the encoded bytes decode to the
+	 * same rows as a decoding traversal, bounds and direction apply, and a
+	 * keys-only spec passes an empty value view.
+	 */
+	public void testRawMapping() throws Exception {
+		final Exchange exchange = getExchange(db, true);
+		final Key scratchKey = new Key(db);
+		final Value scratchValue = new Value(db);
+
+		Traversal<String, Integer, Integer> traversal = Functional.mapRaw(
+				exchange, getFullTraversal(Direction.ASC),
+				new RawMapping<Integer>() {
+					@Override
+					public Integer map(byte[] keyBytes, int keyOffset,
+							int keyLength, byte[] valueBytes, int valueOffset,
+							int valueLength) {
+						System.arraycopy(keyBytes, keyOffset,
+								scratchKey.getEncodedBytes(), 0, keyLength);
+						scratchKey.setEncodedSize(keyLength);
+						scratchValue.putEncodedBytes(valueBytes, valueOffset,
+								valueLength);
+
+						Integer value = (Integer) scratchValue.get();
+						Assert.assertEquals(getKey(value), scratchKey.reset()
+								.decode());
+
+						return value;
+					}
+				});
+		int expected = 0;
+		while (traversal.hasNext()) {
+			Assert.assertEquals(expected++, traversal.next().intValue());
+		}
+		Assert.assertEquals(1000, expected);
+
+		// keys-only steps do not touch the Value, so seed it with a value
+		// that must not show through the empty value view
+		final List<String> keys = new ArrayList<String>();
+		RawMapping<Void> collectKeys = new RawMapping<Void>() {
+			@Override
+			public Void map(byte[] keyBytes, int keyOffset,
+					int keyLength, byte[] valueBytes, int valueOffset,
+					int valueLength) {
+				Assert.assertEquals(0, valueLength);
+
+				System.arraycopy(keyBytes, keyOffset,
+						scratchKey.getEncodedBytes(), 0, keyLength);
+				scratchKey.setEncodedSize(keyLength);
+				keys.add((String) scratchKey.reset().decode());
+
+				return null;
+			}
+		};
+		TraversalSpec<String, Integer> keysOnly = getFullTraversal(
+				Direction.DESC).withStart(getKey(600), true)
+				.withEnd(getKey(500), false).withKeysOnly(true);
+
+		exchange.getValue().put(12345678L);
+		long rows = Functional.foreachRaw(exchange, keysOnly, collectKeys);
+		Assert.assertEquals(100, rows);
+		Assert.assertEquals(getKey(600), keys.get(0));
+		Assert.assertEquals(getKey(501), keys.get(99));
+
+		keys.clear();
+		exchange.getValue().put(12345678L);
+		Functional.mapRaw(exchange, keysOnly, collectKeys).traverseAll();
+		Assert.assertEquals(100, keys.size());
+	}
+
+	/**
+	 * Tests Functional#map with start/end keys, an offset and a limit (in
+	 * each direction); the traversal must stop at the limit without visiting
+	 * further rows.
+	 */
+	public void testIdentityMappingWithBoundsAndLimit() throws Exception {
+		final Exchange exchange = getExchange(db, true);
+
+		TraversalStats stats = TraversalStats.forName("testBoundsAndLimit");
+		stats.reset();
+
+		try {
+			for (Direction direction : Direction.values()) {
+				boolean isAscending = direction.equals(Direction.ASC);
+				TraversalSpec<String, Integer> bounded = getFullTraversal(
+						direction).withStart(
+						getKey(isAscending ? 100 : 200), !isAscending)
+						.withEnd(getKey(isAscending ? 200 : 100), isAscending);
+
+				List<Integer> values = new ArrayList<Integer>();
+				Traversal<String, Integer, Integer> traversal = Functional
+						.map(exchange, bounded, getIdentityMapping(
+								new AtomicLong(), false, true));
+				while (traversal.hasNext()) {
+					values.add(traversal.next());
+				}
+
+				Assert.assertEquals(100, values.size());
+				Assert.assertEquals(isAscending ? 101 : 200, values.get(0)
+						.intValue());
+				Assert.assertEquals(isAscending ? 200 : 101,
+						values.get(99).intValue());
+
+				stats.reset();
+				values.clear();
+				traversal = Functional.map(exchange, bounded.withOffset(10)
+						.withLimit(5).withStats("testBoundsAndLimit"),
+						getIdentityMapping(new AtomicLong(), false, true));
+				while (traversal.hasNext()) {
+					values.add(traversal.next());
+				}
+
+				Assert.assertEquals(5, values.size());
+				Assert.assertEquals(isAscending ? 111 : 190, values.get(0)
+						.intValue());
+				Assert.assertEquals(15, stats.getRowsVisited());
+				Assert.assertEquals(5, stats.getRowsEmitted());
+			}
+		} finally {
+			TraversalStats.remove("testBoundsAndLimit");
+		}
+	}
+
+	/**
+	 * Tests that a traversal without a KeyFilter is shallow by default,
+	 * visiting only the siblings at its starting depth like Exchange.next(),
+	 * and visits the keys below them once made deep; bounds that cover a
+	 * subtree behave the same way in both modes.
+	 */
+	public void testShallowAndDeepTraversal() throws Exception {
+		final Exchange exchange = db.getExchange(vol, tree + "Nested", true);
+		exchange.removeAll();
+		exchange.clear().append("a").getValue().put(1);
+		exchange.store();
+		exchange.clear().append("a").append(1L).getValue().put(2);
+		exchange.store();
+		exchange.clear().append("b").getValue().put(3);
+		exchange.store();
+
+		TraversalSpec<String, Integer> asc = new TraversalSpec<String, Integer>(
+				Direction.ASC);
+		TraversalSpec<String, Integer> desc = new TraversalSpec<String, Integer>(
+				Direction.DESC);
+
+		Assert.assertEquals("[1, 3]", values(exchange, asc).toString());
+		Assert.assertEquals("[3, 1]", values(exchange, desc).toString());
+		Assert.assertEquals("[1, 2, 3]", values(exchange, asc.withDeep(true))
+				.toString());
+		Assert.assertEquals("[3, 2, 1]", values(exchange, desc.withDeep(true))
+				.toString());
+
+		// an exclusive start skips the subtree; an inclusive one includes it
+		Assert.assertEquals("[3]", values(exchange, asc.withStart("a", false))
+				.toString());
+		Assert.assertEquals("[3]", values(exchange,
+				asc.withStart("a", false).withDeep(true)).toString());
+		Assert.assertEquals("[1]", values(exchange, desc.withStart("a", true))
+				.toString());
+		Assert.assertEquals("[2, 1]", values(exchange,
+				desc.withStart("a", true).withDeep(true)).toString());
+
+		db.releaseExchange(exchange);
+	}
+
+	private static List<Integer> values(Exchange exchange,
+			TraversalSpec<String, Integer> spec) {
+		final List<Integer> values = new ArrayList<Integer>();
+		Functional.foreach(exchange, spec, new Mapping<String, Integer, Void>() {
+			@Override
+			public Void map(Pair<String, Integer> row) {
+				values.add(row.getValue());
+
+				return null;
+			}
+		});
+
+		return values;
+	}
+
+	/**
+	 * Tests Functional#prefetch (in each direction): rows arrive in order,
+	 * closing early is safe, and a failure on the producer thread surfaces
+	 * from hasNext().
+	 */
+	public void testPrefetchMapping() throws Exception {
+		for (Direction direction : Direction.values()) {
+			final boolean isAscending = direction.equals(Direction.ASC);
+			final AtomicLong counter = new AtomicLong();
+
+			CloseableTraversal<String, Integer, Integer> traversal = Functional
+					.prefetch(db, vol, tree, getFullTraversal(direction),
+							getIdentityMapping(counter, true, true), 10);
+
+			int expected = isAscending ? 0 : 999;
+			while (traversal.hasNext()) {
+				Assert.assertEquals(expected, traversal.next().intValue());
+				expected += isAscending ? 1 : -1;
+			}
+
+			Assert.assertEquals(1000, counter.get());
+		}
+
+		CloseableTraversal<String, Integer, Integer> abandoned = Functional
+				.prefetch(db, vol, tree, getFullTraversal(Direction.ASC),
+						getIdentityMapping(new AtomicLong(), false, true), 10);
+		for (int i = 0; i < 5; i++) {
+			Assert.assertEquals(i, abandoned.next().intValue());
+		}
+		abandoned.close();
+		Assert.assertFalse(abandoned.hasNext());
+
+		CloseableTraversal<String, Integer, Integer> failing = Functional
+				.prefetch(db, vol, tree, getFilteredTraversal(Direction.ASC,
+						new Filter<String, Integer>() {
+							@Override
+							public Boolean map(Pair<String, Integer> row) {
+								if (row.getValue() == 500) {
+									throw new IllegalStateException("boom");
+								}
+
+								return true;
+							}
+						}), getIdentityMapping(new AtomicLong(), false, true),
+						10);
+
+		try {
+			failing.traverseAll();
+			Assert.fail();
+		} catch (RuntimeException expected) {
+			// the traversal wraps exceptions from the Filter
+			Assert.assertEquals("boom", expected.getCause().getMessage());
+		}
+	}
+
+	/**
+	 * Tests Functional#spliterator (in each direction): after consuming a few
+	 * rows, the rest is split repeatedly and the splits are traversed on
+	 * other threads; concatenated in split order they must cover every row
+	 * once, in order.
+	 */
+	public void testSplittableTraversal() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+
+		try {
+			for (Direction direction : Direction.values()) {
+				boolean isAscending = direction.equals(Direction.ASC);
+				final List<Integer> head = new ArrayList<Integer>();
+				final Mapping<String, Integer, Void> collectHead = collect(head);
+
+				SplittableTraversal<String, Integer> whole = Functional
+						.spliterator(db, vol, tree, getFullTraversal(direction));
+				for (int i = 0; i < 3; i++) {
+					Assert.assertTrue(whole.tryAdvance(collectHead));
+				}
+
+				// split into prefixes until each part is small or unsplittable
+				List<SplittableTraversal<String, Integer>> parts = new ArrayList<SplittableTraversal<String, Integer>>();
+				parts.add(whole);
+				for (int round = 0; round < 3; round++) {
+					List<SplittableTraversal<String, Integer>> next = new ArrayList<SplittableTraversal<String, Integer>>();
+					for (SplittableTraversal<String, Integer> part : parts) {
+						SplittableTraversal<String, Integer> prefix = part
+								.trySplit();
+						if (prefix != null) {
+							next.add(prefix);
+						}
+						next.add(part);
+					}
+					parts = next;
+				}
+
+				Assert.assertTrue(parts.size() > 1);
+
+				List<Future<List<Integer>>> results = new ArrayList<Future<List<Integer>>>();
+				for (final SplittableTraversal<String, Integer> part : parts) {
+					results.add(executor.submit(new Callable<List<Integer>>() {
+						@Override
+						public List<Integer> call() throws Exception {
+							List<Integer> values = new ArrayList<Integer>();
+							part.forEachRemaining(collect(values));
+
+							return values;
+						}
+					}));
+				}
+
+				List<Integer> all = new ArrayList<Integer>(head);
+				for (Future<List<Integer>> result : results) {
+					all.addAll(result.get());
+				}
+
+				Assert.assertEquals(1000, all.size());
+				for (int i = 0; i < 1000; i++) {
+					Assert.assertEquals(isAscending ? i : 999 - i, all.get(i)
+							.intValue());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that a split made by a thread with an open transaction does not
+	 * read in that transaction when it is consumed on another thread.
+	 */
+	public void testSplitOnOtherThreadLeavesTransaction() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Exchange exchange = getExchange(db, false);
+		Transaction txn = db.getTransaction();
+
+		txn.begin();
+		try {
+			// an uncommitted update in the lower half of the tree
+			exchange.clear().append(getKey(5)).getValue().put(-5);
+			exchange.store();
+
+			SplittableTraversal<String, Integer> whole = Functional
+					.spliterator(db, vol, tree,
+							getFullTraversal(Direction.ASC));
+			final SplittableTraversal<String, Integer> lower = whole
+					.trySplit();
+			Assert.assertNotNull(lower);
+
+			List<Integer> values = executor.submit(
+					new Callable<List<Integer>>() {
+						@Override
+						public List<Integer> call() throws Exception {
+							List<Integer> values = new ArrayList<Integer>();
+							lower.forEachRemaining(collect(values));
+
+							return values;
+						}
+					}).get();
+
+			Assert.assertTrue(values.size() > 5);
+			Assert.assertEquals(5, values.get(5).intValue());
+		} finally {
+			txn.rollback();
+			txn.end();
+			executor.shutdownNow();
+			db.releaseExchange(exchange);
+		}
+	}
+
+	private static Mapping<String, Integer, Void> collect(
+			final List<Integer> values) {
+		return new Mapping<String, Integer, Void>() {
+			@Override
+			public Void map(Pair<String, Integer> row) {
+				Assert.assertEquals(getKey(row.getValue()), row.getKey());
+				values.add(row.getValue());
+
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Tests per-traversal statistics: two traversals under the same name with
+	 * a KeyFilter and a row filter are aggregated into one TraversalStats,
+	 * which is visible through the platform MBean server.
+	 */
+	public void testTraversalStats() throws Exception {
+		final AtomicLong counter = new AtomicLong();
+		final Exchange exchange = getExchange(db, true);
+
+		TraversalStats stats = TraversalStats.forName("testTraversalStats");
+		stats.reset();
+		stats.setSampleInterval(1);
+
+		try {
+			KeyFilter filter100 = new KeyFilter(new Term[] { KeyFilter
+					.rangeTerm(getKey(100), getKey(200), true, false) });
+			TraversalSpec<String, Integer> spec = new TraversalSpec<String, Integer>(
+					Direction.ASC, filter100, new Filter<String, Integer>() {
+						@Override
+						public Boolean map(Pair<String, Integer> row) {
+							return row.getKey().compareTo(getKey(150)) < 0;
+						}
+					}).withStats("testTraversalStats");
+
+			for (int i = 0; i < 2; i++) {
+				Functional.foreach(exchange, spec,
+						getIdentityMapping(counter, true, true));
+			}
+
+			Assert.assertEquals(100, counter.get());
+			Assert.assertEquals(2, stats.getTraversals());
+			Assert.assertEquals(200, stats.getRowsVisited());
+			Assert.assertEquals(100, stats.getRowsRejectedByFilter());
+			Assert.assertEquals(100, stats.getRowsEmitted());
+			Assert.assertEquals(200, stats.getSampledRows());
+			Assert.assertTrue(stats.getBytesDecoded() > 0);
+			Assert.assertTrue(stats.getCursorNanosPerRow() > 0.0);
+
+			Object rowsVisited = ManagementFactory.getPlatformMBeanServer()
+					.getAttribute(
+							TraversalStats.getObjectName("testTraversalStats"),
+							"RowsVisited");
+			Assert.assertEquals(200L, rowsVisited);
+		} finally {
+			TraversalStats.remove("testTraversalStats");
+		}
+	}
+
 	/**
 	 * Tests Functional#map with a simple mapping (Integer to String) to make
 	 * sure the count is correct and mapped keys and values match up.
@@ -17,18 +17,26 @@
  */
 package com.g414.persistit;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 import junit.framework.Assert;
 
 import org.testng.annotations.Test;
 
+import com.g414.persistit.Functional.Combiner;
 import com.g414.persistit.Functional.Direction;
+import com.g414.persistit.Functional.DoubleReduction;
 import com.g414.persistit.Functional.Filter;
+import com.g414.persistit.Functional.LongReduction;
 import com.g414.persistit.Functional.Pair;
 import com.g414.persistit.Functional.Reduction;
+import com.g414.persistit.Functional.Traversal;
 import com.g414.persistit.Functional.TraversalSpec;
 import com.persistit.Exchange;
+import com.persistit.Key;
 import com.persistit.KeyFilter;
 import com.persistit.KeyFilter.Term;
 
@@ -154,4 +162,210 @@ public class FunctionalReductionTest extends FunctionalTestBase {
 		Assert.assertEquals(descendingSum, 34950);
 		Assert.assertEquals(counter.get(), 100);
 	}
+
+	/**
+	 * Tests Functional#parallelReduce with the summation reduction over the
+	 * full key space, a row filter and a KeyFilter; results must match the
+	 * sequential reduction.
+	 */
+	public void testParallelSummationReduction() throws Exception {
+		Reduction<String, Integer, Integer> summation = new Reduction<String, Integer, Integer>() {
+			@Override
+			public Integer reduce(Pair<String, Integer> row, Integer accum) {
+				Assert.assertEquals(row.getKey(), getKey(row.getValue()));
+
+				return accum + row.getValue();
+			}
+		};
+
+		Combiner<Integer> addition = new Combiner<Integer>() {
+			@Override
+			public Integer combine(Integer left, Integer right) {
+				return left + right;
+			}
+		};
+
+		for (int parallelism : new int[] { 1, 2, 4, 16 }) {
+			Assert.assertEquals(499500, (int) Functional.parallelReduce(db,
+					vol, tree, getFullTraversal(Direction.ASC), summation,
+					addition, 0, parallelism));
+
+			Assert.assertEquals(249500, (int) Functional.parallelReduce(db,
+					vol, tree, getFilteredTraversal(Direction.DESC,
+							new Filter<String, Integer>() {
+								@Override
+								public Boolean map(Pair<String, Integer> row) {
+									return row.getValue() % 2 == 0;
+								}
+							}), summation, addition, 0, parallelism));
+
+			KeyFilter filter100 = new KeyFilter(new Term[] { KeyFilter
+					.rangeTerm(getKey(100), getKey(200), true, false) });
+
+			Assert.assertEquals(14950, (int) Functional.parallelReduce(db,
+					vol, tree, new TraversalSpec<String, Integer>(
+							Direction.ASC, filter100, null), summation,
+					addition, 0, parallelism));
+		}
+	}
+
+	/**
+	 * Tests Functional#parallelReduce with an order-sensitive (associative but
+	 * not commutative) reduction; partial results must be combined in
+	 * traversal order for both directions.
+	 */
+	public void testParallelConcatenationReduction() throws Exception {
+		final Exchange exchange = getExchange(db, true);
+
+		Reduction<String, Integer, String> concatenation = new Reduction<String, Integer, String>() {
+			@Override
+			public String reduce(Pair<String, Integer> row, String accum) {
+				return accum + row.getKey();
+			}
+		};
+
+		Combiner<String> append = new Combiner<String>() {
+			@Override
+			public String combine(String left, String right) {
+				return left + right;
+			}
+		};
+
+		for (Direction direction : Direction.values()) {
+			String expected = Functional.reduce(exchange,
+					getFullTraversal(direction), concatenation, "");
+
+			Assert.assertEquals(expected, Functional.parallelReduce(db, vol,
+					tree, getFullTraversal(direction), concatenation, append,
+					"", 4));
+		}
+	}
+
+	/**
+	 * Tests Functional#reduceLong and Functional#reduceDouble with summation
+	 * reductions (in each direction, with and without a row filter); the
+	 * stored Integer values are widened without boxing.
+	 */
+	public void testPrimitiveSummationReduction() throws Exception {
+		final AtomicLong counter = new AtomicLong();
+		final Exchange exchange = getExchange(db, true);
+
+		LongReduction longSummation = new LongReduction() {
+			@Override
+			public long reduce(Key key, long value, long accum) {
+				Assert.assertEquals(getKey((int) value), key.decodeString());
+				counter.getAndIncrement();
+
+				return accum + value;
+			}
+		};
+
+		DoubleReduction doubleSummation = new DoubleReduction() {
+			@Override
+			public double reduce(Key key, double value, double accum) {
+				return accum + value / 2;
+			}
+		};
+
+		Filter<String, Integer> evens = new Filter<String, Integer>() {
+			@Override
+			public Boolean map(Pair<String, Integer> row) {
+				return row.getValue() % 2 == 0;
+			}
+		};
+
+		for (Direction direction : Direction.values()) {
+			counter.set(0);
+
+			Assert.assertEquals(499500L, Functional.reduceLong(exchange,
+					getFullTraversal(direction), longSummation, 0L));
+			Assert.assertEquals(1000, counter.get());
+
+			Assert.assertEquals(249500L, Functional.reduceLong(exchange,
+					getFilteredTraversal(direction, evens), longSummation, 0L));
+			Assert.assertEquals(1500, counter.get());
+
+			Assert.assertEquals(249750.0, Functional.reduceDouble(exchange,
+					getFullTraversal(direction), doubleSummation, 0.0), 0.0);
+		}
+	}
+
+	/**
+	 * Tests Functional#reduceByPrefix over (tenant, day, id) keys: grouping
+	 * by one or two leading segments (in each direction) yields one sum per
+	 * group, in key order, and a Reduction may keep the rows it is given.
+	 */
+	public void testReduceByPrefix() throws Exception {
+		final Exchange exchange = db.getExchange(vol, tree + "Prefix", true);
+		exchange.removeAll();
+
+		String[] tenants = new String[] { "a", "b", "c" };
+		for (String tenant : tenants) {
+			for (int day = 0; day < 10; day++) {
+				for (int id = 0; id < 10; id++) {
+					exchange.clear().append(tenant).append(day).append(id);
+					exchange.getValue().put(day * 10 + id);
+					exchange.store();
+				}
+			}
+		}
+
+		Reduction<String, Integer, Integer> summation = new Reduction<String, Integer, Integer>() {
+			@Override
+			public Integer reduce(Pair<String, Integer> row, Integer accum) {
+				return accum + row.getValue();
+			}
+		};
+
+		Reduction<String, Integer, Pair<String, Integer>> lastRow = new Reduction<String, Integer, Pair<String, Integer>>() {
+			@Override
+			public Pair<String, Integer> reduce(Pair<String, Integer> row,
+					Pair<String, Integer> accum) {
+				return row;
+			}
+		};
+
+		for (Direction direction : Direction.values()) {
+			boolean isAscending = direction.equals(Direction.ASC);
+
+			Traversal<String, Integer, Pair<List<Object>, Pair<String, Integer>>> lastByTenant = Functional
+					.reduceByPrefix(exchange, getFullTraversal(direction), 1,
+							lastRow, null);
+			List<Pair<String, Integer>> lastRows = new ArrayList<Pair<String, Integer>>();
+			while (lastByTenant.hasNext()) {
+				lastRows.add(lastByTenant.next().getValue());
+			}
+			Assert.assertEquals(tenants.length, lastRows.size());
+			for (Pair<String, Integer> row : lastRows) {
+				Assert.assertEquals(isAscending ? 99 : 0, row.getValue()
+						.intValue());
+			}
+
+			Traversal<String, Integer, Pair<List<Object>, Integer>> byTenant = Functional
+					.reduceByPrefix(exchange, getFullTraversal(direction), 1,
+							summation, 0);
+			for (int i = 0; i < tenants.length; i++) {
+				Pair<List<Object>, Integer> group = byTenant.next();
+				Assert.assertEquals(Arrays.<Object> asList(tenants[isAscending ? i
+						: tenants.length - 1 - i]), group.getKey());
+				Assert.assertEquals(4950, group.getValue().intValue());
+			}
+			Assert.assertFalse(byTenant.hasNext());
+
+			Traversal<String, Integer, Pair<List<Object>, Integer>> byDay = Functional
+					.reduceByPrefix(exchange, getFullTraversal(direction), 2,
+							summation, 0);
+			int groups = 0;
+			while (byDay.hasNext()) {
+				Pair<List<Object>, Integer> group = byDay.next();
+				int day = (Integer) group.getKey().get(1);
+				Assert.assertEquals(isAscending ? groups % 10
+						: 9 - (groups % 10), day);
+				Assert.assertEquals(day * 100 + 45, group.getValue()
+						.intValue());
+				groups += 1;
+			}
+			Assert.assertEquals(30, groups);
+		}
+	}
 }
@@ -0,0 +1,206 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.Traversal;
+import com.g414.persistit.Functional.TraversalSpec;
+import com.g414.persistit.IndexedTemplate.IndexExtractor;
+import com.g414.persistit.Template.TransactionCallback;
+import com.persistit.Exchange;
+import com.persistit.Transaction;
+
+@Test
+public class IndexedTemplateTest extends FunctionalTestBase {
+	private static final String INDEX = tree + "ByCity";
+
+	/**
+	 * Tests that inserts, updates and deletes through an IndexedTemplate keep
+	 * a "city/name" index in step with the base tree, and that index scans
+	 * return the base records.
+	 */
+	public void testIndexMaintenance() throws Exception {
+		final Exchange exchange = db.getExchange(vol, tree + "People", true);
+		final Exchange index = db.getExchange(vol, INDEX, true);
+		exchange.removeAll();
+		index.removeAll();
+		final IndexedTemplate<Integer, String> template = newTemplate();
+
+		Assert.assertTrue(template.insert(exchange, 1, "paris/alice"));
+		Assert.assertTrue(template.insert(exchange, 2, "oslo/bob"));
+		Assert.assertFalse(template.insert(exchange, 2, "rome/bob"));
+		Assert.assertTrue(template.insertOrUpdate(exchange, 3, "paris/carol"));
+		Assert.assertFalse(template.update(exchange, 4, "rome/dan"));
+		Assert.assertNull(template.load(exchange, 4));
+
+		Map<Integer, String> more = new HashMap<Integer, String>();
+		more.put(5, "rome/erin");
+		more.put(6, "oslo/frank");
+		template.storeAll(exchange, more);
+
+		Assert.assertEquals("[1, 3]", scan(template, exchange, index,
+				IndexedTemplate.indexSpec("paris")).toString());
+		Assert.assertEquals("[2, 6, 1, 3]", scan(template, exchange, index,
+				IndexedTemplate.indexSpec("oslo", "paris")).toString());
+
+		// moving carol to rome removes her paris entry
+		Assert.assertTrue(template.update(exchange, 3, "rome/carol"));
+		Assert.assertTrue(template.insertOrUpdate(exchange, 6, "oslo/frank2"));
+		Assert.assertTrue(template.delete(exchange, 2));
+		Assert.assertFalse(template.delete(exchange, 2));
+
+		Assert.assertEquals("[1]", scan(template, exchange, index,
+				IndexedTemplate.indexSpec("paris")).toString());
+		Assert.assertEquals("[6]", scan(template, exchange, index,
+				IndexedTemplate.indexSpec("oslo")).toString());
+		Assert.assertEquals("[3, 5]", scan(template, exchange, index,
+				IndexedTemplate.indexSpec("rome")).toString());
+
+		// one entry per indexed record: nothing stale is left behind
+		index.clear();
+		int entries = 0;
+		while (index.next(true)) {
+			entries += 1;
+		}
+		Assert.assertEquals(4, entries);
+
+		db.releaseExchange(index);
+		db.releaseExchange(exchange);
+	}
+
+	/**
+	 * Tests that index entries written in a transaction that rolls back are
+	 * rolled back with the base record.
+	 */
+	public void testRollbackIncludesIndex() throws Exception {
+		final Exchange exchange = db.getExchange(vol, tree + "People", true);
+		final Exchange index = db.getExchange(vol, INDEX, true);
+		exchange.removeAll();
+		index.removeAll();
+		final IndexedTemplate<Integer, String> template = newTemplate();
+
+		try {
+			template.inTransaction(db, new TransactionCallback<Void>() {
+				@Override
+				public Void inTransaction(Transaction txn) {
+					template.insert(exchange, 1, "paris/alice");
+					throw new IllegalStateException("roll back");
+				}
+			});
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		Assert.assertNull(template.load(exchange, 1));
+		Assert.assertEquals("[]", scan(template, exchange, index,
+				IndexedTemplate.indexSpec("paris")).toString());
+
+		db.releaseExchange(index);
+		db.releaseExchange(exchange);
+	}
+
+	/**
+	 * Tests index scans over a base tree with CompositeKey keys, whose index
+	 * entries have more than two segments.
+	 */
+	public void testIndexOverCompositeKeys() throws Exception {
+		final Exchange exchange = db.getExchange(vol, tree + "People", true);
+		final Exchange index = db.getExchange(vol, INDEX, true);
+		exchange.removeAll();
+		index.removeAll();
+
+		Map<String, IndexExtractor<String>> indexes = new LinkedHashMap<String, IndexExtractor<String>>();
+		indexes.put(INDEX, new IndexExtractor<String>() {
+			@Override
+			public Object extract(String value) {
+				return value.substring(0, value.indexOf('/'));
+			}
+		});
+		IndexedTemplate<CompositeKey, String> template = new IndexedTemplate<CompositeKey, String>(
+				indexes, CompositeKey.CODEC, null);
+
+		Assert.assertTrue(template.insert(exchange, CompositeKey.of("fr", 1L),
+				"paris/alice"));
+		Assert.assertTrue(template.insert(exchange, CompositeKey.of("no", 2L),
+				"oslo/bob"));
+		Assert.assertTrue(template.insert(exchange, CompositeKey.of("fr", 3L),
+				"paris/carol"));
+
+		List<CompositeKey> keys = new ArrayList<CompositeKey>();
+		Traversal<CompositeKey, String, Pair<CompositeKey, String>> rows = template
+				.scan(exchange, index, IndexedTemplate.indexSpec("paris"), 10);
+		while (rows.hasNext()) {
+			keys.add(rows.next().getKey());
+		}
+		Assert.assertEquals(Arrays.asList(CompositeKey.of("fr", 1L),
+				CompositeKey.of("fr", 3L)), keys);
+
+		keys.clear();
+		rows = template.scan(exchange, index,
+				IndexedTemplate.indexSpec("oslo", "paris"), 10);
+		while (rows.hasNext()) {
+			keys.add(rows.next().getKey());
+		}
+		Assert.assertEquals(3, keys.size());
+
+		db.releaseExchange(index);
+		db.releaseExchange(exchange);
+	}
+
+	private static IndexedTemplate<Integer, String> newTemplate() {
+		Map<String, IndexExtractor<String>> indexes = new LinkedHashMap<String, IndexExtractor<String>>();
+		indexes.put(INDEX, new IndexExtractor<String>() {
+			@Override
+			public Object extract(String value) {
+				return value.substring(0, value.indexOf('/'));
+			}
+		});
+
+		return new IndexedTemplate<Integer, String>(indexes);
+	}
+
+	private static List<Integer> scan(IndexedTemplate<Integer, String> template,
+			Exchange exchange, Exchange index,
+			TraversalSpec<Object, Object> indexSpec) {
+		List<Integer> keys = new ArrayList<Integer>();
+
+		// a batch size of 2 makes the larger scans span several batches
+		Traversal<Integer, String, Pair<Integer, String>> rows = template
+				.scan(exchange, index, indexSpec, 2);
+		while (rows.hasNext()) {
+			Pair<Integer, String> row = rows.next();
+			Assert.assertEquals(row.getValue(), template.load(exchange,
+					row.getKey()).getValue());
+			keys.add(row.getKey());
+		}
+
+		return keys;
+	}
+}
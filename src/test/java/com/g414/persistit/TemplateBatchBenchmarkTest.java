@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.persistit.Exchange;
+
+/**
+ * Compares Template#loadAll against one Template#load call per key, for
+ * batches of random keys of several sizes.
+ */
+@Test(groups = "slow")
+public class TemplateBatchBenchmarkTest extends BenchmarkTestBase {
+	public void testLoadAll() throws Exception {
+		final int rows = getIntProperty("bench.rows", 1000000);
+		final int lookups = getIntProperty("bench.lookups", 500000);
+		final Exchange exchange = db.getExchange(vol, tree, true);
+		final Template<Integer, Integer> template = new Template<Integer, Integer>();
+
+		for (int i = 0; i < rows; i++) {
+			template.insertOrUpdate(exchange, i, i);
+		}
+
+		for (final int batchSize : new int[] { 50, 500 }) {
+			final List<List<Integer>> batches = new ArrayList<List<Integer>>();
+			Random random = new Random(batchSize);
+			for (int i = 0; i < lookups / batchSize; i++) {
+				List<Integer> batch = new ArrayList<Integer>(batchSize);
+				for (int j = 0; j < batchSize; j++) {
+					batch.add(random.nextInt(rows));
+				}
+				batches.add(batch);
+			}
+
+			for (int round = 0; round < 2; round++) {
+				long individualNanos = time(new Runnable() {
+					public void run() {
+						for (List<Integer> batch : batches) {
+							for (Integer key : batch) {
+								Assert.assertNotNull(template.load(exchange,
+										key));
+							}
+						}
+					}
+				});
+
+				long batchNanos = time(new Runnable() {
+					public void run() {
+						for (List<Integer> batch : batches) {
+							Assert.assertEquals(batch.size(), template
+									.loadAll(exchange, batch).size());
+						}
+					}
+				});
+
+				if (round > 0) {
+					report("load x " + batchSize, lookups, individualNanos);
+					report("loadAll(" + batchSize + ")", lookups, batchNanos);
+				}
+			}
+		}
+
+		db.releaseExchange(exchange);
+	}
+}
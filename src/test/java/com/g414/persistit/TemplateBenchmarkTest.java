@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.Template.TransactionCallback;
+import com.persistit.Exchange;
+import com.persistit.Transaction;
+
+/**
+ * Measures the Template point operations (insert, load, update and delete)
+ * over keys in random order, with values of bench.valueSize characters.
+ */
+@Test(groups = "slow")
+public class TemplateBenchmarkTest extends BenchmarkTestBase {
+	public void testPointOperations() throws Exception {
+		final int rows = getIntProperty("bench.rows", 200000);
+		final int valueSize = getIntProperty("bench.valueSize", 128);
+		final Exchange exchange = db.getExchange(vol, tree, true);
+		final Template<Integer, String> template = new Template<Integer, String>();
+
+		final List<Integer> keys = new ArrayList<Integer>();
+		for (int i = 0; i < rows; i++) {
+			keys.add(i);
+		}
+		Collections.shuffle(keys, new Random(rows));
+
+		StringBuilder padding = new StringBuilder();
+		while (padding.length() < valueSize) {
+			padding.append("0123456789abcdef");
+		}
+		final String value = padding.substring(0, valueSize);
+
+		Map<String, Object> params = new LinkedHashMap<String, Object>();
+		params.put("valueSize", valueSize);
+
+		// the first round warms up the buffer pool and the JIT
+		for (int round = 0; round < 2; round++) {
+			long insert = measure(new Runnable() {
+				public void run() {
+					for (Integer key : keys) {
+						Assert.assertTrue(template.insert(exchange, key, value));
+					}
+				}
+			});
+			long load = measure(new Runnable() {
+				public void run() {
+					for (Integer key : keys) {
+						Assert.assertNotNull(template.load(exchange, key));
+					}
+				}
+			});
+			long update = measure(new Runnable() {
+				public void run() {
+					for (Integer key : keys) {
+						Assert.assertTrue(template.update(exchange, key, value));
+					}
+				}
+			});
+			long delete = measure(new Runnable() {
+				public void run() {
+					for (Integer key : keys) {
+						Assert.assertTrue(template.delete(exchange, key));
+					}
+				}
+			});
+
+			if (round > 0) {
+				report("Template.insert", params, rows, insert);
+				report("Template.load", params, rows, load);
+				report("Template.update", params, rows, update);
+				report("Template.delete", params, rows, delete);
+			}
+		}
+
+		db.releaseExchange(exchange);
+	}
+
+	private long measure(final Runnable task) throws Exception {
+		final Template<Integer, String> template = new Template<Integer, String>();
+
+		return template.inTransaction(db, new TransactionCallback<Long>() {
+			@Override
+			public Long inTransaction(Transaction txn) {
+				return time(task);
+			}
+		});
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.Functional.Direction;
+import com.g414.persistit.Functional.Mapping;
+import com.g414.persistit.Functional.Mutation;
+import com.g414.persistit.Functional.MutationType;
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.PairImpl;
+import com.persistit.Exchange;
+
+@Test
+public class TemplateSessionTest extends FunctionalTestBase {
+	/**
+	 * Tests that ExchangeProvider reuses a thread's Exchange, hands nested
+	 * callers distinct Exchanges and never shares Exchanges across threads.
+	 */
+	public void testThreadAffinePooling() throws Exception {
+		final ExchangeProvider provider = new ExchangeProvider(db);
+
+		Exchange first = provider.acquire(vol, tree);
+		provider.release(first);
+		Exchange second = provider.acquire(vol, tree);
+		Exchange nested = provider.acquire(vol, tree);
+
+		Assert.assertTrue(first == second);
+		Assert.assertTrue(second != nested);
+
+		final AtomicReference<Exchange> other = new AtomicReference<Exchange>();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Exchange exchange = provider.acquire(vol, tree);
+				other.set(exchange);
+				provider.release(exchange);
+				provider.releaseThread();
+			}
+		});
+		thread.start();
+		thread.join();
+
+		Assert.assertNotNull(other.get());
+		Assert.assertTrue(other.get() != second && other.get() != nested);
+
+		try {
+			provider.release(other.get());
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+			// acquired on another thread
+		}
+
+		provider.release(nested);
+		provider.release(second);
+		provider.close();
+
+		try {
+			provider.acquire(vol, tree);
+			Assert.fail();
+		} catch (IllegalStateException expected) {
+			// closed
+		}
+	}
+
+	/**
+	 * Tests TemplateSession operations, including a Template call nested
+	 * inside a traversal on the same thread and tree.
+	 */
+	public void testSessionOperations() throws Exception {
+		final ExchangeProvider provider = new ExchangeProvider(db);
+		final TemplateSession<String, Integer> session = new TemplateSession<String, Integer>(
+				provider, vol, tree, new Template<String, Integer>());
+
+		Assert.assertEquals(7, (int) session.load(getKey(7)).getValue());
+		Assert.assertTrue(session.update(getKey(7), -7));
+		Assert.assertEquals(-7, (int) session.load(getKey(7)).getValue());
+		Assert.assertTrue(session.delete(getKey(7)));
+		Assert.assertFalse(session.recordExists(getKey(7)));
+
+		final AtomicLong counter = new AtomicLong();
+		session.foreach(getFullTraversal(Direction.ASC),
+				new Mapping<String, Integer, Void>() {
+					@Override
+					public Void map(Pair<String, Integer> row) {
+						Assert.assertEquals(row.getValue(), session.load(
+								row.getKey()).getValue());
+						counter.incrementAndGet();
+
+						return null;
+					}
+				});
+
+		Assert.assertEquals(999, counter.get());
+
+		provider.close();
+	}
+
+	/**
+	 * Tests TemplateSession#apply: mutations are written through the
+	 * session's Template, and a mutation that throws rolls back the rows
+	 * already written.
+	 */
+	public void testSessionApply() throws Exception {
+		final ExchangeProvider provider = new ExchangeProvider(db);
+		final TemplateSession<String, Integer> session = new TemplateSession<String, Integer>(
+				provider, vol, tree, new Template<String, Integer>());
+
+		session.apply(getFullTraversal(Direction.ASC).withLimit(10),
+				new Mapping<String, Integer, Mutation<String, Integer>>() {
+					@Override
+					public Mutation<String, Integer> map(
+							Pair<String, Integer> row) {
+						return new Mutation<String, Integer>(
+								MutationType.INSERT_OR_UPDATE,
+								new PairImpl<String, Integer>(row.getKey(),
+										-row.getValue()));
+					}
+				});
+
+		Assert.assertEquals(-9, (int) session.load(getKey(9)).getValue());
+		Assert.assertEquals(10, (int) session.load(getKey(10)).getValue());
+
+		try {
+			session.apply(getFullTraversal(Direction.ASC),
+					new Mapping<String, Integer, Mutation<String, Integer>>() {
+						@Override
+						public Mutation<String, Integer> map(
+								Pair<String, Integer> row) {
+							if (row.getKey().equals(getKey(500))) {
+								throw new IllegalStateException("boom");
+							}
+
+							return new Mutation<String, Integer>(
+									MutationType.DELETE, row);
+						}
+					});
+			Assert.fail();
+		} catch (RuntimeException expected) {
+			// the failed apply is rolled back
+		}
+
+		Assert.assertTrue(session.recordExists(getKey(0)));
+		Assert.assertTrue(session.recordExists(getKey(499)));
+
+		provider.close();
+	}
+}
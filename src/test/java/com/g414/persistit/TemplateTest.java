@@ -0,0 +1,356 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.Functional.Mapping;
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.Traversal;
+import com.g414.persistit.Functional.TraversalSpec;
+import com.g414.persistit.Functional.ValueCodec;
+import com.g414.persistit.Template.RetryPolicy;
+import com.g414.persistit.Template.TransactionCallback;
+import com.persistit.Exchange;
+import com.persistit.Transaction;
+import com.persistit.Transaction.CommitPolicy;
+import com.persistit.exception.RollbackException;
+
+@Test
+public class TemplateTest extends FunctionalTestBase {
+	/**
+	 * Tests Template#insert, #update and #delete return values and the
+	 * resulting records for both present and absent keys.
+	 */
+	public void testConditionalWrites() throws Exception {
+		final Exchange exchange = getExchange(db, true);
+		final Template<String, Integer> template = new Template<String, Integer>();
+
+		Assert.assertFalse(template.insert(exchange, getKey(5), -5));
+		Assert.assertEquals(5, (int) template.load(exchange, getKey(5))
+				.getValue());
+
+		Assert.assertTrue(template.insert(exchange, getKey(1005), 1005));
+		Assert.assertEquals(1005, (int) template.load(exchange, getKey(1005))
+				.getValue());
+
+		Assert.assertTrue(template.update(exchange, getKey(5), -5));
+		Assert.assertEquals(-5, (int) template.load(exchange, getKey(5))
+				.getValue());
+
+		Assert.assertFalse(template.update(exchange, getKey(1006), 1006));
+		Assert.assertNull(template.load(exchange, getKey(1006)));
+		Assert.assertFalse(template.recordExists(exchange, getKey(1006)));
+
+		Assert.assertTrue(template.delete(exchange, getKey(5)));
+		Assert.assertNull(template.load(exchange, getKey(5)));
+		Assert.assertFalse(template.delete(exchange, getKey(5)));
+
+		db.releaseExchange(exchange);
+	}
+
+	/**
+	 * Tests that concurrent conditional writes are atomic: a rejected insert
+	 * is never visible to readers and never overwrites a concurrent update,
+	 * and of two threads inserting the same new keys exactly one wins each.
+	 * A rejected write is undone inside its transaction but still conflicts
+	 * with concurrent writes of the key, so the writes to the contended key
+	 * retry until they get through.
+	 */
+	public void testConcurrentConditionalWrites() throws Exception {
+		final Template<String, Integer> template = new Template<String, Integer>();
+		final int rounds = 2000;
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicInteger inserted = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			// rejected inserts of an existing key
+			results.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					Exchange exchange = getExchange(db, false);
+					while (!done.get()) {
+						Assert.assertFalse(contendedWrite(template, exchange,
+								getKey(5), -1, true));
+					}
+					db.releaseExchange(exchange);
+
+					return null;
+				}
+			}));
+			// readers of that key
+			results.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					Exchange exchange = getExchange(db, false);
+					while (!done.get()) {
+						Assert.assertTrue(template.load(exchange, getKey(5))
+								.getValue() != -1);
+					}
+					db.releaseExchange(exchange);
+
+					return null;
+				}
+			}));
+			// two threads racing to insert the same new keys
+			for (int t = 0; t < 2; t++) {
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						Exchange exchange = getExchange(db, false);
+						for (int i = 0; i < rounds; i++) {
+							if (template.insert(exchange, getKey(3000 + i), i)) {
+								inserted.incrementAndGet();
+							}
+						}
+						db.releaseExchange(exchange);
+
+						return null;
+					}
+				}));
+			}
+
+			// updates of the contended key must stick
+			Exchange exchange = getExchange(db, false);
+			try {
+				for (int i = 0; i < rounds; i++) {
+					Assert.assertTrue(contendedWrite(template, exchange,
+							getKey(5), i, false));
+					Assert.assertEquals(i, (int) template.load(exchange,
+							getKey(5)).getValue());
+				}
+			} finally {
+				db.releaseExchange(exchange);
+			}
+
+			// let the insert racers finish before stopping the other threads
+			results.get(2).get();
+			results.get(3).get();
+			done.set(true);
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		} finally {
+			done.set(true);
+			executor.shutdown();
+		}
+
+		Assert.assertEquals(rounds, inserted.get());
+	}
+
+	/** Inserts or updates a key, retrying every write-write conflict */
+	private static boolean contendedWrite(final Template<String, Integer> template,
+			final Exchange exchange, final String key, final int value,
+			final boolean insert) throws Exception {
+		return template.inTransaction(db, new RetryPolicy(1000, 0, 0),
+				new TransactionCallback<Boolean>() {
+					@Override
+					public Boolean inTransaction(Transaction txn) {
+						return insert ? template.insert(exchange, key, value)
+								: template.update(exchange, key, value);
+					}
+				});
+	}
+
+	/**
+	 * Tests Template#loadAll and #storeAll with unsorted, duplicate and
+	 * absent keys; results must come back in the caller's order.
+	 */
+	public void testLoadAllStoreAll() throws Exception {
+		final Exchange exchange = getExchange(db, true);
+		final Template<String, Integer> template = new Template<String, Integer>();
+
+		List<Pair<String, Integer>> loaded = template.loadAll(exchange,
+				Arrays.asList(getKey(900), getKey(3), getKey(2000), getKey(3),
+						getKey(42)));
+
+		Assert.assertEquals(5, loaded.size());
+		Assert.assertEquals(900, (int) loaded.get(0).getValue());
+		Assert.assertEquals(getKey(3), loaded.get(1).getKey());
+		Assert.assertEquals(3, (int) loaded.get(1).getValue());
+		Assert.assertNull(loaded.get(2));
+		Assert.assertEquals(3, (int) loaded.get(3).getValue());
+		Assert.assertEquals(42, (int) loaded.get(4).getValue());
+
+		Map<String, Integer> records = new LinkedHashMap<String, Integer>();
+		records.put(getKey(1500), 1500);
+		records.put(getKey(7), -7);
+		records.put(getKey(1200), 1200);
+		template.storeAll(exchange, records);
+
+		loaded = template.loadAll(exchange, records.keySet());
+		Assert.assertEquals(1500, (int) loaded.get(0).getValue());
+		Assert.assertEquals(-7, (int) loaded.get(1).getValue());
+		Assert.assertEquals(1200, (int) loaded.get(2).getValue());
+
+		db.releaseExchange(exchange);
+	}
+
+	/**
+	 * Tests Template#inTransaction with a RetryPolicy: rollbacks are retried
+	 * (and their writes discarded) until the attempts run out, while other
+	 * exceptions abort immediately.
+	 */
+	public void testInTransactionRetry() throws Exception {
+		final Exchange exchange = getExchange(db, true);
+		final Template<String, Integer> template = new Template<String, Integer>();
+		final RetryPolicy policy = new RetryPolicy(3, 1, 10,
+				CommitPolicy.SOFT);
+		final AtomicInteger attempts = new AtomicInteger();
+
+		int result = template.inTransaction(db, policy,
+				new TransactionCallback<Integer>() {
+					@Override
+					public Integer inTransaction(Transaction txn) {
+						int attempt = attempts.incrementAndGet();
+						template.insertOrUpdate(exchange, getKey(2000 + attempt),
+								attempt);
+
+						if (attempt < 3) {
+							throw new RuntimeException(new RollbackException());
+						}
+
+						return attempt;
+					}
+				});
+
+		Assert.assertEquals(3, result);
+		Assert.assertEquals(1, policy.getCommitCount());
+		Assert.assertEquals(2, policy.getRetryCount());
+		Assert.assertEquals(0, policy.getAbortCount());
+		Assert.assertFalse(template.recordExists(exchange, getKey(2001)));
+		Assert.assertFalse(template.recordExists(exchange, getKey(2002)));
+		Assert.assertTrue(template.recordExists(exchange, getKey(2003)));
+
+		attempts.set(0);
+		try {
+			template.inTransaction(db, policy, new TransactionCallback<Void>() {
+				@Override
+				public Void inTransaction(Transaction txn) {
+					attempts.incrementAndGet();
+					throw new RollbackException();
+				}
+			});
+			Assert.fail();
+		} catch (RollbackException expected) {
+			Assert.assertEquals(3, attempts.get());
+		}
+
+		attempts.set(0);
+		try {
+			template.inTransaction(db, policy, new TransactionCallback<Void>() {
+				@Override
+				public Void inTransaction(Transaction txn) {
+					attempts.incrementAndGet();
+					throw new IllegalArgumentException();
+				}
+			});
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+			Assert.assertEquals(1, attempts.get());
+		}
+
+		Assert.assertEquals(1, policy.getCommitCount());
+		Assert.assertEquals(4, policy.getRetryCount());
+		Assert.assertEquals(2, policy.getAbortCount());
+
+		db.releaseExchange(exchange);
+	}
+
+	/**
+	 * Tests that a Template with a ValueCodec stores the codec's bytes, reads
+	 * them back through load, loadAll and a traversal with the same codec, and
+	 * stores nulls without calling the codec.
+	 */
+	public void testValueCodec() throws Exception {
+		final Exchange exchange = db.getExchange(vol, tree + "Codec", true);
+		exchange.removeAll();
+
+		// reverses the string, so a value read without the codec is visibly
+		// different
+		ValueCodec<String> codec = new ValueCodec<String>() {
+			@Override
+			public byte[] encode(String value) {
+				return new StringBuilder(value).reverse().toString()
+						.getBytes(Charset.forName("UTF-8"));
+			}
+
+			@Override
+			public String decode(byte[] encoded) {
+				return new StringBuilder(new String(encoded,
+						Charset.forName("UTF-8"))).reverse().toString();
+			}
+		};
+		final Template<Integer, String> template = new Template<Integer, String>(
+				codec);
+
+		Assert.assertTrue(template.insert(exchange, 1, "one"));
+		Assert.assertTrue(template.insertOrUpdate(exchange, 2, "two"));
+		Assert.assertTrue(template.update(exchange, 2, "deux"));
+		Assert.assertTrue(template.insertOrUpdate(exchange, 3, null));
+
+		Map<Integer, String> more = new LinkedHashMap<Integer, String>();
+		more.put(4, "four");
+		template.storeAll(exchange, more);
+
+		Assert.assertEquals("one", template.load(exchange, 1).getValue());
+		Assert.assertNull(template.load(exchange, 3).getValue());
+
+		List<Pair<Integer, String>> loaded = template.loadAll(exchange,
+				Arrays.asList(4, 2));
+		Assert.assertEquals("four", loaded.get(0).getValue());
+		Assert.assertEquals("deux", loaded.get(1).getValue());
+
+		exchange.clear().append(1).fetch();
+		Assert.assertTrue(Arrays.equals("eno".getBytes("UTF-8"),
+				(byte[]) exchange.getValue().get()));
+
+		List<String> values = new ArrayList<String>();
+		Traversal<Integer, String, String> traversal = Functional.map(
+				exchange, new TraversalSpec<Integer, String>().withCodec(codec),
+				new Mapping<Integer, String, String>() {
+					@Override
+					public String map(Pair<Integer, String> row) {
+						return row.getValue();
+					}
+				});
+		while (traversal.hasNext()) {
+			values.add(traversal.next());
+		}
+		Assert.assertEquals(Arrays.asList("one", "deux", null, "four"), values);
+
+		db.releaseExchange(exchange);
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.Template.TransactionCallback;
+import com.persistit.Exchange;
+import com.persistit.Transaction;
+import com.persistit.exception.PersistitException;
+
+/**
+ * Compares Template#insert, #update and #delete (a single descent, in a
+ * transaction of their own) against the unguarded recordExists()-then-write
+ * they replaced, both with no transaction open and inside one outer
+ * transaction.
+ */
+@Test(groups = "slow")
+public class TemplateWriteBenchmarkTest extends BenchmarkTestBase {
+	public void testConditionalWrites() throws Exception {
+		final int rows = getIntProperty("bench.rows", 1000000);
+		final Exchange exchange = db.getExchange(vol, tree, true);
+		final Template<Integer, Integer> template = new Template<Integer, Integer>();
+
+		for (int round = 0; round < 4; round++) {
+			final boolean report = round > 1;
+			final boolean outer = (round % 2) == 1;
+
+			measure(report, outer, "insert (recordExists + store)", rows,
+					new Runnable() {
+						public void run() {
+							for (int i = 0; i < rows; i++) {
+								if (!template.recordExists(exchange, i)) {
+									template.insertOrUpdate(exchange, i, i);
+								}
+							}
+						}
+					});
+			measure(report, outer, "update (recordExists + store)", rows,
+					new Runnable() {
+						public void run() {
+							for (int i = 0; i < rows; i++) {
+								if (template.recordExists(exchange, i)) {
+									template.insertOrUpdate(exchange, i, i + 1);
+								}
+							}
+						}
+					});
+			measure(report, outer, "delete (recordExists + fetchAndRemove)",
+					rows,
+					new Runnable() {
+						public void run() {
+							try {
+								for (int i = 0; i < rows; i++) {
+									if (template.recordExists(exchange, i)) {
+										exchange.getKey().to(i);
+										exchange.fetchAndRemove();
+									}
+								}
+							} catch (PersistitException e) {
+								throw new RuntimeException(e);
+							}
+						}
+					});
+
+			measure(report, outer, "Template.insert", rows, new Runnable() {
+				public void run() {
+					for (int i = 0; i < rows; i++) {
+						Assert.assertTrue(template.insert(exchange, i, i));
+					}
+				}
+			});
+			measure(report, outer, "Template.update", rows, new Runnable() {
+				public void run() {
+					for (int i = 0; i < rows; i++) {
+						Assert.assertTrue(template.update(exchange, i, i + 1));
+					}
+				}
+			});
+			measure(report, outer, "Template.delete", rows, new Runnable() {
+				public void run() {
+					for (int i = 0; i < rows; i++) {
+						Assert.assertTrue(template.delete(exchange, i));
+					}
+				}
+			});
+		}
+
+		db.releaseExchange(exchange);
+	}
+
+	/** Times the task, inside one outer transaction if outer is set */
+	private void measure(boolean report, boolean outer, String name,
+			int rows, final Runnable task) throws Exception {
+		final Template<Integer, Integer> template = new Template<Integer, Integer>();
+		final long[] nanos = new long[1];
+
+		if (outer) {
+			template.inTransaction(db, new TransactionCallback<Void>() {
+				@Override
+				public Void inTransaction(Transaction txn) {
+					nanos[0] = time(task);
+
+					return null;
+				}
+			});
+		} else {
+			nanos[0] = time(task);
+		}
+
+		if (report) {
+			report(outer ? name + " in transaction" : name, rows, nanos[0]);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.Functional.Mapping;
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.TraversalSpec;
+import com.g414.persistit.Template.TransactionCallback;
+import com.persistit.Exchange;
+import com.persistit.Transaction;
+
+/**
+ * Measures TreeExport#export and #importFrom against copying a tree row by
+ * row with foreach and Template#insertOrUpdate (which decodes and re-encodes
+ * every key and value).
+ */
+@Test(groups = "slow")
+public class TreeExportBenchmarkTest extends BenchmarkTestBase {
+	public void testExportImport() throws Exception {
+		final int rows = getIntProperty("bench.rows", 200000);
+		final int valueSize = getIntProperty("bench.valueSize", 1024);
+		final Exchange source = db.getExchange(vol, tree, true);
+		final Template<Integer, String> template = new Template<Integer, String>();
+		final File file = File.createTempFile("persistit-export", ".dat");
+
+		final StringBuilder padding = new StringBuilder();
+		while (padding.length() < valueSize) {
+			padding.append("0123456789abcdef");
+		}
+
+		template.inTransaction(db, new TransactionCallback<Void>() {
+			@Override
+			public Void inTransaction(Transaction txn) {
+				for (int i = 0; i < rows; i++) {
+					template.insertOrUpdate(source, i,
+							padding.substring(0, valueSize));
+				}
+
+				return null;
+			}
+		});
+
+		Map<String, Object> params = new LinkedHashMap<String, Object>();
+		params.put("valueSize", valueSize);
+
+		try {
+			for (int round = 0; round < 2; round++) {
+				final Exchange copy = db.getExchange(vol, tree + "Copy"
+						+ round, true);
+				final Exchange imported = db.getExchange(vol, tree
+						+ "Import" + round, true);
+
+				long copyNanos = inTransaction(new Runnable() {
+					public void run() {
+						Functional.foreach(source,
+								new TraversalSpec<Integer, String>(),
+								new Mapping<Integer, String, Void>() {
+									@Override
+									public Void map(Pair<Integer, String> row) {
+										template.insertOrUpdate(copy,
+												row.getKey(), row.getValue());
+
+										return null;
+									}
+								});
+					}
+				});
+				long exportNanos = time(new Runnable() {
+					public void run() {
+						Assert.assertEquals(rows, TreeExport.export(source,
+								new TraversalSpec<Integer, String>(), file));
+					}
+				});
+				long importNanos = inTransaction(new Runnable() {
+					public void run() {
+						Assert.assertEquals(rows, TreeExport.importFrom(
+								imported, file));
+					}
+				});
+
+				if (round > 0) {
+					params.put("fileBytes", file.length());
+					report("copy (foreach + insertOrUpdate)", params, rows,
+							copyNanos);
+					report("TreeExport.export", params, rows, exportNanos);
+					report("TreeExport.importFrom", params, rows, importNanos);
+				}
+
+				db.releaseExchange(imported);
+				db.releaseExchange(copy);
+			}
+		} finally {
+			file.delete();
+			db.releaseExchange(source);
+		}
+	}
+
+	private long inTransaction(final Runnable task) throws Exception {
+		final Template<Integer, String> template = new Template<Integer, String>();
+
+		return template.inTransaction(db, new TransactionCallback<Long>() {
+			@Override
+			public Long inTransaction(Transaction txn) {
+				return time(task);
+			}
+		});
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.Functional.Direction;
+import com.g414.persistit.Functional.Mapping;
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.Traversal;
+import com.g414.persistit.Functional.TraversalSpec;
+import com.persistit.Exchange;
+import com.persistit.KeyFilter;
+import com.persistit.KeyFilter.Term;
+
+@Test
+public class TreeExportTest extends FunctionalTestBase {
+	/**
+	 * Tests TreeExport#export and #importFrom: a full export round-trips
+	 * into another tree with the same keys and values, and a KeyFilter
+	 * limits the rows exported.
+	 */
+	public void testExportImport() throws Exception {
+		Exchange source = getExchange(db, true);
+		Exchange target = db.getExchange(vol, tree + "Copy", true);
+		File file = File.createTempFile("persistit-export", ".dat");
+
+		try {
+			Assert.assertEquals(1000, TreeExport.export(source,
+					getFullTraversal(Direction.DESC), file));
+			Assert.assertEquals(1000, TreeExport.importFrom(target, file));
+
+			AtomicLong counter = new AtomicLong();
+			Functional.foreach(target, getFullTraversal(Direction.ASC),
+					getIdentityMapping(counter, true, true));
+			Assert.assertEquals(1000, counter.get());
+
+			KeyFilter filter100 = new KeyFilter(new Term[] { KeyFilter
+					.rangeTerm(getKey(100), getKey(200), true, false) });
+			target.removeAll();
+
+			Assert.assertEquals(100, TreeExport.export(source,
+					new Functional.TraversalSpec<String, Integer>(
+							Direction.ASC, filter100, null), file));
+			Assert.assertEquals(100, TreeExport.importFrom(target, file));
+
+			counter.set(0);
+			Functional.foreach(target, getFullTraversal(Direction.ASC),
+					getIdentityMapping(counter, true, true));
+			Assert.assertEquals(100, counter.get());
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Tests that an export of a tree with multi-segment keys, with no spec or
+	 * a default (shallow) one, includes every row and round-trips.
+	 */
+	public void testExportImportCompositeKeys() throws Exception {
+		Exchange source = db.getExchange(vol, tree + "Composite", true);
+		Exchange target = db.getExchange(vol, tree + "CompositeCopy", true);
+		File file = File.createTempFile("persistit-export", ".dat");
+		Template<CompositeKey, Integer> template = new Template<CompositeKey, Integer>(
+				CompositeKey.CODEC, null);
+		source.removeAll();
+
+		try {
+			template.insertOrUpdate(source, CompositeKey.of("a", 1), 1);
+			template.insertOrUpdate(source, CompositeKey.of("a", 2), 2);
+			template.insertOrUpdate(source, CompositeKey.of("b", 1), 3);
+
+			Assert.assertEquals(3, TreeExport.export(source, null, file));
+			Assert.assertEquals(3, TreeExport.export(source,
+					new TraversalSpec<CompositeKey, Integer>(), file));
+
+			target.removeAll();
+			Assert.assertEquals(3, TreeExport.importFrom(target, file));
+
+			List<Pair<CompositeKey, Integer>> rows = new ArrayList<Pair<CompositeKey, Integer>>();
+			Traversal<CompositeKey, Integer, Pair<CompositeKey, Integer>> traversal = Functional
+					.map(target, new TraversalSpec<CompositeKey, Integer>()
+							.withKeyCodec(CompositeKey.CODEC).withDeep(true),
+							new Mapping<CompositeKey, Integer, Pair<CompositeKey, Integer>>() {
+								@Override
+								public Pair<CompositeKey, Integer> map(
+										Pair<CompositeKey, Integer> row) {
+									return row;
+								}
+							});
+			while (traversal.hasNext()) {
+				rows.add(traversal.next());
+			}
+
+			Assert.assertEquals(3, rows.size());
+			Assert.assertEquals(CompositeKey.of("a", 1), rows.get(0).getKey());
+			Assert.assertEquals(1, (int) rows.get(0).getValue());
+			Assert.assertEquals(CompositeKey.of("a", 2), rows.get(1).getKey());
+			Assert.assertEquals(2, (int) rows.get(1).getValue());
+			Assert.assertEquals(CompositeKey.of("b", 1), rows.get(2).getKey());
+			Assert.assertEquals(3, (int) rows.get(2).getValue());
+		} finally {
+			file.delete();
+			db.releaseExchange(target);
+			db.releaseExchange(source);
+		}
+	}
+
+	/**
+	 * Tests that TreeExport#importFrom rejects a file with a flipped byte or
+	 * a missing tail.
+	 */
+	public void testCorruptImport() throws Exception {
+		Exchange source = getExchange(db, true);
+		Exchange target = db.getExchange(vol, tree + "Copy", true);
+		File file = File.createTempFile("persistit-export", ".dat");
+
+		try {
+			TreeExport.export(source, getFullTraversal(Direction.ASC), file);
+
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.seek(100);
+				int b = raf.read();
+				raf.seek(100);
+				raf.write(b ^ 0x01);
+			} finally {
+				raf.close();
+			}
+
+			try {
+				TreeExport.importFrom(target, file);
+				Assert.fail();
+			} catch (RuntimeException expected) {
+				// checksum mismatch
+			}
+
+			raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(raf.length() - 12);
+			} finally {
+				raf.close();
+			}
+
+			try {
+				TreeExport.importFrom(target, file);
+				Assert.fail();
+			} catch (RuntimeException expected) {
+				// truncated
+			}
+		} finally {
+			file.delete();
+		}
+	}
+}
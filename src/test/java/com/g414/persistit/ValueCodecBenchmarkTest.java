@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.persistit;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.g414.persistit.Functional.Pair;
+import com.g414.persistit.Functional.Reduction;
+import com.g414.persistit.Functional.TraversalSpec;
+import com.g414.persistit.Functional.ValueCodec;
+import com.g414.persistit.Template.TransactionCallback;
+import com.persistit.Exchange;
+import com.persistit.Transaction;
+
+/**
+ * Compares storing and reading a small POJO with Persistit's default
+ * serialization against a hand-written ValueCodec: write and full-scan read
+ * throughput, and the average stored value size.
+ */
+@Test(groups = "slow")
+public class ValueCodecBenchmarkTest extends BenchmarkTestBase {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static class Event implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final long id;
+		private final int kind;
+		private final long timestamp;
+		private final double amount;
+		private final String name;
+
+		public Event(long id, int kind, long timestamp, double amount,
+				String name) {
+			this.id = id;
+			this.kind = kind;
+			this.timestamp = timestamp;
+			this.amount = amount;
+			this.name = name;
+		}
+
+		public double getAmount() {
+			return amount;
+		}
+	}
+
+	private static final ValueCodec<Event> CODEC = new ValueCodec<Event>() {
+		@Override
+		public byte[] encode(Event value) {
+			byte[] name = value.name.getBytes(UTF8);
+
+			return ByteBuffer.allocate(28 + 4 + name.length).putLong(value.id)
+					.putInt(value.kind).putLong(value.timestamp)
+					.putDouble(value.amount).putInt(name.length).put(name)
+					.array();
+		}
+
+		@Override
+		public Event decode(byte[] encoded) {
+			ByteBuffer buffer = ByteBuffer.wrap(encoded);
+			long id = buffer.getLong();
+			int kind = buffer.getInt();
+			long timestamp = buffer.getLong();
+			double amount = buffer.getDouble();
+			int length = buffer.getInt();
+
+			return new Event(id, kind, timestamp, amount, new String(encoded,
+					buffer.position(), length, UTF8));
+		}
+	};
+
+	public void testCodecAgainstDefaultSerialization() throws Exception {
+		final int rows = getIntProperty("bench.rows", 200000);
+
+		for (int round = 0; round < 2; round++) {
+			run(round > 0, "default", tree + "Default",
+					new Template<Integer, Event>(), rows);
+			run(round > 0, "codec", tree + "Codec",
+					new Template<Integer, Event>(CODEC), rows);
+		}
+	}
+
+	private void run(boolean doReport, String name, String treeName,
+			final Template<Integer, Event> template, final int rows)
+			throws Exception {
+		final Exchange exchange = db.getExchange(vol, treeName, true);
+		exchange.removeAll();
+
+		long write = time(new Runnable() {
+			public void run() {
+				try {
+					template.inTransaction(db,
+							new TransactionCallback<Void>() {
+								@Override
+								public Void inTransaction(Transaction txn) {
+									for (int i = 0; i < rows; i++) {
+										template.insertOrUpdate(exchange, i,
+												new Event(i, i % 16,
+														1300000000000L + i,
+														i * 0.25, "event-" + i));
+									}
+
+									return null;
+								}
+							});
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+
+		final TraversalSpec<Integer, Event> spec = new TraversalSpec<Integer, Event>()
+				.withCodec(template.getCodec());
+		final AtomicLong visited = new AtomicLong();
+		long read = time(new Runnable() {
+			public void run() {
+				double total = Functional.reduce(exchange, spec,
+						new Reduction<Integer, Event, Double>() {
+							@Override
+							public Double reduce(Pair<Integer, Event> row,
+									Double accum) {
+								visited.incrementAndGet();
+
+								return accum + row.getValue().getAmount();
+							}
+						}, 0.0);
+				Assert.assertTrue(total > 0);
+			}
+		});
+		Assert.assertEquals(rows, visited.get());
+
+		long valueBytes = 0;
+		exchange.clear();
+		while (exchange.next(true)) {
+			valueBytes += exchange.getValue().getEncodedSize();
+		}
+
+		if (doReport) {
+			Map<String, Object> params = new LinkedHashMap<String, Object>();
+			params.put("encoding", name);
+			params.put("bytesPerValue", valueBytes / rows);
+
+			report("write (" + name + ")", params, rows, write);
+			report("full-scan read (" + name + ")", params, rows, read);
+		}
+
+		db.releaseExchange(exchange);
+	}
+}